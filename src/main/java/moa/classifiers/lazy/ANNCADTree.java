@@ -19,9 +19,6 @@
 package moa.classifiers.lazy;
 
 import java.io.Serializable;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Map.Entry;
 import java.util.Random;
 
 import com.github.javacliparser.FloatOption;
@@ -43,7 +40,13 @@ import moa.streams.generators.HyperplaneGenerator;
  * Notes:
  * <p>
  * It is not prepared for nominal attributes.<br>
- * The memory run out's procedure is not implemented.<br> 
+ * The forgetting is applied lazily: each block rescales its votes by the
+ * factor of the instances arrived since it was last used.<br>
+ * The memory can be bounded with a maximum number of blocks. When it is
+ * reached, the blocks whose votes have decayed below a minimum mass are
+ * collapsed into their parents (which already count their instances). If
+ * there is still no room, the instances stop at the deepest block 
+ * available.<br>
  * <p>
  * Valid options are:
  * <p>
@@ -53,14 +56,26 @@ import moa.streams.generators.HyperplaneGenerator;
  * -t threshold for deciding if go down in the tree or not <br>
  * -f forgetting factor <br>
  * -s maximum shift of the grid <br>
+ * -m maximum number of blocks of the tree <br>
+ * -e minimum mass of votes of a block to keep it when the tree is full <br>
  * 
  * @author Álvar Arnaiz-González
- * @version 20160606
+ * @version 20160701
  */
 public class ANNCADTree extends AbstractClassifier {
 
 	private static final long serialVersionUID = -7323723076168696015L;
 
+	/**
+	 * Initial number of slots of the children's map of a block.
+	 */
+	private static final int INITIAL_CHILD_SLOTS = 4;
+
+	/**
+	 * Number of powers of the forgetting factor that are precomputed.
+	 */
+	private static final int FORGETTING_POWERS = 64;
+
 	public IntOption mMaxDepthTree = new IntOption("maxDepthTree", 'd',
 	         "Max. depth of the tree", 4, 1, Integer.MAX_VALUE);
 
@@ -79,15 +94,56 @@ public class ANNCADTree extends AbstractClassifier {
 	public FloatOption mShift = new FloatOption("shift", 's',
 	         "Maximum random shift of the grid", 0.5, 0, 1);
 
+	public IntOption mMaxBlocks = new IntOption("maxBlocks", 'm',
+	         "Maximum number of blocks of the tree, 0 for no limit", 
+	         0, 0, Integer.MAX_VALUE);
+
+	public FloatOption mMinMass = new FloatOption("minMass", 'e',
+	         "Minimum mass of votes of a block to keep it when the tree is full", 
+	         0.01, 0, 1);
+
 	private Block mBlock;
 	
 	private int mClasses;
 
+	/**
+	 * Code of the cell of the instance that is being added or classified.
+	 */
+	private long[] mCode;
+
+	/**
+	 * Number of times that the forgetting has been applied: it is
+	 * increased with each instance trained.
+	 */
+	private long mEpoch;
+
+	/**
+	 * Powers of the forgetting factor, mPowers[k] is the factor of k
+	 * epochs.
+	 */
+	private double[] mPowers;
+
+	/**
+	 * Number of blocks of the tree.
+	 */
+	private int mNumBlocks;
+
+	/**
+	 * Number of instances trained.
+	 */
+	private long mNumTrained;
+
+	/**
+	 * Number of instances trained when the tree, if it is full, can be
+	 * swept again looking for blocks to collapse.
+	 */
+	private long mNextSweep;
+
 	@Override
 	public double[] getVotesForInstance(Instance inst) {
 		// From finest to coarsest.
 		if (mBlock != null)
-			return mBlock.getVotesForInstance (inst);
+			return mBlock.getVotesForInstance (inst, new double[mClasses]);
 		
 		return new double[inst.numClasses()];
 	}
@@ -106,6 +162,11 @@ public class ANNCADTree extends AbstractClassifier {
 	@Override
 	public void resetLearningImpl() {
 		mBlock = null;
+		mCode = null;
+		mEpoch = 0;
+		mNumBlocks = 0;
+		mNumTrained = 0;
+		mNextSweep = 0;
 	}
 
 	@Override
@@ -131,20 +192,30 @@ public class ANNCADTree extends AbstractClassifier {
 			
 			mBlock = new Block (mClasses, inst.numAttributes() - 1, 0, 
 			           mMaxDepthTree.getValue(), lowBoundaries, uppBoundaries);
+			mCode = new long[codeWords(inst.numAttributes() - 1)];
+			mNumBlocks = 1;
+			mPowers = new double[FORGETTING_POWERS];
+			
+			for (int i = 0; i < mPowers.length; i++)
+				mPowers[i] = Math.pow(mForgetting.getValue(), i);
 		}
 
 		// Add the new instance to the block's structure.
 		mBlock.add(inst);
+		mNumTrained++;
 		
-		// Exponential forgetting.
+		// Exponential forgetting: each block applies it when it is used.
 		if (mForgetting.getValue() != 1)
-			mBlock.exponentialForgetting(mForgetting.getValue());
+			mEpoch++;
 	}
 
 	@Override
 	protected Measurement[] getModelMeasurementsImpl() {
 
-		return null;
+		return new Measurement[] {
+		        new Measurement("tree blocks", mNumBlocks),
+		        new Measurement("tree estimated bytes", 
+		                        mBlock == null ? 0 : mBlock.bytes())};
 	}
 
 	@Override
@@ -163,6 +234,58 @@ public class ANNCADTree extends AbstractClassifier {
 		return true;
 	}
 	
+	/**
+	 * Makes room for a new block within the maximum number of blocks,
+	 * collapsing the blocks with low mass if the tree is full. The tree is
+	 * swept again only after as many instances as blocks it has, so the
+	 * sweeps cost O(1) per instance.
+	 * 
+	 * @return True if the block can be created.
+	 */
+	private boolean reserveBlock() {
+		int maxBlocks = mMaxBlocks.getValue();
+		
+		if (maxBlocks > 0 && mNumBlocks >= maxBlocks) {
+			if (mNumTrained < mNextSweep)
+				return false;
+			
+			// The blocks of the current path have, at least, the mass of 
+			// the instance being added, so they are not collapsed.
+			mNumBlocks -= mBlock.collapse(mMinMass.getValue());
+			mNextSweep = mNumTrained + mNumBlocks;
+			
+			if (mNumBlocks >= maxBlocks)
+				return false;
+		}
+		
+		mNumBlocks++;
+		
+		return true;
+	}
+	
+	/**
+	 * Computes the forgetting factor of a number of epochs.
+	 * 
+	 * @param epochs Number of epochs.
+	 * @return Forgetting factor raised to epochs.
+	 */
+	private double forgettingFactor(long epochs) {
+		if (epochs < mPowers.length)
+			return mPowers[(int) epochs];
+		
+		return Math.pow(mForgetting.getValue(), epochs);
+	}
+	
+	/**
+	 * Computes the number of words of 64 bits of the cells' codes.
+	 * 
+	 * @param numAtt Number of attributes.
+	 * @return Number of words.
+	 */
+	private static int codeWords(int numAtt) {
+		return Math.max(1, (numAtt + 63) >>> 6);
+	}
+	
 	/**
 	 * Block that contains the information that ANNCAD needs.
 	 */
@@ -175,6 +298,11 @@ public class ANNCADTree extends AbstractClassifier {
 		 */
 		private double mVotesPerClass[];
 		
+		/**
+		 * Epoch of the forgetting that the votes are updated to.
+		 */
+		private long mTime;
+		
 		/**
 		 * Depth's level of the block.
 		 */
@@ -201,9 +329,9 @@ public class ANNCADTree extends AbstractClassifier {
 		private double mUpperBound[];
 
 		/**
-		 * Children of the block.
+		 * Children of the block, by the code of their cell.
 		 */
-		private HashMap<String, Block> mChilds;
+		private CellMap mChilds;
 		
 		/**
 		 * Constructor of the tree.
@@ -218,13 +346,16 @@ public class ANNCADTree extends AbstractClassifier {
 		public Block (int numClasses, int numAtt, int currDepth, int maxDepth,
 		                double lower, double upper) {
 			mVotesPerClass = new double[numClasses];
-			mChilds = new HashMap<>(4);
+			mTime = mEpoch;
 			mCurrentDepth = currDepth;
 			mMaxDepth = maxDepth;
 			mLowerBound = new double[numAtt];
 			mUpperBound = new double[numAtt];
 			mCentre = new double[numAtt];
 
+			if (currDepth != maxDepth)
+				mChilds = new CellMap(codeWords(numAtt));
+
 			for (int i = 0; i < numAtt; i++) {
 				mLowerBound[i] = lower;
 				mUpperBound[i] = upper;
@@ -253,27 +384,51 @@ public class ANNCADTree extends AbstractClassifier {
 			}
 		}
 		
+		/**
+		 * Constructor of a child: its cell is the half of the parent's one
+		 * in each dimension given by the code.
+		 * 
+		 * @param parent Parent block.
+		 * @param code Code of the cell of the child in the parent.
+		 */
+		private Block (Block parent, long[] code) {
+			this(parent.mVotesPerClass.length, parent.mCentre.length, 
+			      parent.mCurrentDepth + 1, parent.mMaxDepth, 0, 0);
+			
+			for (int j = 0; j < mCentre.length; j++) {
+				if ((code[j >>> 6] & (1L << j)) == 0) {
+					mLowerBound[j] = parent.mLowerBound[j];
+					mUpperBound[j] = parent.mCentre[j];
+				}
+				else {
+					mLowerBound[j] = parent.mCentre[j];
+					mUpperBound[j] = parent.mUpperBound[j];
+				}
+				
+				mCentre[j] = mLowerBound[j] + ((mUpperBound[j] - mLowerBound[j]) / 2);
+			}
+		}
+		
 		/**
 		 * Adds an instance to the tree.
 		 * 
 		 * @param inst Instance to add.
 		 */
 		public void add (Instance inst) {
+			forget();
 			mVotesPerClass[(int)inst.classValue()]++;
 			
 			if (mCurrentDepth != mMaxDepth) {
-				double[] lowBoundaries = new double[inst.numAttributes() - 1];
-				double[] uppBoundaries = new double[inst.numAttributes() - 1];
-				String key = calcKey(inst, mCurrentDepth + 1, 
-				                       lowBoundaries, uppBoundaries);
-				
-				Block child = mChilds.get(key);
+				long[] code = calcKey(inst, mCode);
+				Block child = mChilds.get(code);
 				
 				if (child == null) {
-					child = new Block (mClasses, inst.numAttributes() - 1, 
-					                    mCurrentDepth + 1, mMaxDepth,
-					                    lowBoundaries, uppBoundaries);
-					mChilds.put(key, child);
+					// The tree is full: this block acts as a leaf.
+					if (!reserveBlock())
+						return;
+					
+					child = new Block (this, code);
+					mChilds.put(code, child);
 				}
 				
 				child.add(inst);
@@ -307,52 +462,51 @@ public class ANNCADTree extends AbstractClassifier {
 		}
 		
 		/**
-		 * Computes the tree's key for an instance.
+		 * Computes the code of the child's cell that contains an instance:
+		 * the z-value, a bit for each attribute (1 if it is not lower than
+		 * the centre), packed in words of 64 bits.
 		 * 
 		 * @param inst Instance.
-		 * @param depth Depth of the tree.
-		 * @param lowerBoundaries Lower boundaries of the cell.
-		 * @param upperBoundaries Upper boundaries of the cell.
-		 * @return Tree's key.
+		 * @param code Array where the code is written.
+		 * @return The code.
 		 */
-		private String calcKey (Instance inst, int depth, double lowerBoundaries[],
-		                          double upperBoundaries[]) {
-			String combKey = new String();
+		private long[] calcKey (Instance inst, long[] code) {
+			int classIndex = inst.classIndex();
+			long word = 0;
 			
 			// Compute the z-value
 			for (int i = 0, j = 0; i < inst.numAttributes(); i++) {
-				if (i != inst.classIndex()) {
+				if (i != classIndex) {
 					// Compute the cell.
-					if (inst.value(i) < mCentre[j]) {
-						lowerBoundaries[j] = mLowerBound[j];
-						upperBoundaries[j] = mCentre[j];
-						combKey += "0";
-					}
-					else {
-						lowerBoundaries[j] = mCentre[j];
-						upperBoundaries[j] = mUpperBound[j];
-						combKey += "1";
-					}
+					if (!(inst.value(i) < mCentre[j]))
+						word |= 1L << j;
 					
 					j++;
+					
+					if ((j & 63) == 0) {
+						code[(j >>> 6) - 1] = word;
+						word = 0;
+					}
 				}
 			}
 			
-			return combKey;
+			if ((mCentre.length & 63) != 0)
+				code[mCentre.length >>> 6] = word;
+			
+			return code;
 		}
 		
 		/**
 		 * Computes the votes for an instance.
 		 * 
 		 * @param inst Instance.
+		 * @param v Array where the votes are written, initially zero.
 		 * @return Array with the votes.
 		 */
-		public double[] getVotesForInstance (Instance inst) {
-			double[] lowBoundaries = new double[inst.numAttributes() - 1];
-			double[] uppBoundaries = new double[inst.numAttributes() - 1];
-			double[] v = new double[mClasses];
+		public double[] getVotesForInstance (Instance inst, double[] v) {
 			int predClass;
 			
+			forget();
 			predClass = getPredClass();
 			
 			if (predClass != -1) {
@@ -369,29 +523,40 @@ public class ANNCADTree extends AbstractClassifier {
 				return v;
 			}
 			
-			// Obtain the key of inst.
-			String key = calcKey(inst, mCurrentDepth + 1, lowBoundaries, uppBoundaries);
-			Block child = mChilds.get(key);
+			// Obtain the cell of inst.
+			Block child = mChilds.get(calcKey(inst, mCode));
 			
-			// Calc the NN cell.
+			// Calc the NN cell. Ties go to the lowest code.
 			if (child == null) {
 				double tmpDist, minDist = Double.MAX_VALUE;
-				Block nearestCell = null;
-				Iterator<Entry<String, Block>> it = mChilds.entrySet().iterator();
-			    while (it.hasNext()) {
-			    	Entry<String, Block> pair = (Entry<String, Block>)it.next();
-			    	tmpDist = pair.getValue().distance (inst);
-			    	
-					if (tmpDist < minDist) {
-						minDist = tmpDist;
-						nearestCell = pair.getValue();
+				Block cell;
+				int nearest = -1;
+				
+				for (int i = 0; i < mChilds.capacity(); i++) {
+					cell = mChilds.valueAt(i);
+					
+					if (cell != null) {
+						tmpDist = cell.distance (inst);
+						
+						if (tmpDist < minDist || (tmpDist == minDist && 
+						      mChilds.lowerCode(i, nearest))) {
+							minDist = tmpDist;
+							nearest = i;
+							child = cell;
+						}
 					}
-			    }
-			    
-				return nearestCell.getVotesForInstance(inst);
+				}
+				
+				// No distance is defined (missing values): vote as a leaf.
+				if (child == null) {
+					for (int i = 0; i < mClasses; i++)
+						v[i] = mVotesPerClass[i];
+					
+					return v;
+				}
 			}
 			
-			return child.getVotesForInstance(inst);
+			return child.getVotesForInstance(inst, v);
 		}
 		
 		/**
@@ -401,11 +566,12 @@ public class ANNCADTree extends AbstractClassifier {
 		 * @return Euclidean distance between inst and the cell.
 		 */
 		public double distance (Instance inst) {
-			double diff = 0;
+			double d, diff = 0;
 			
 			for (int j = 0, i = 0; i < inst.numAttributes(); i++) {
 				if (i != inst.classIndex()) {
-					diff += Math.pow(mCentre[j] - inst.value(i), 2); 
+					d = mCentre[j] - inst.value(i);
+					diff += d * d; 
 					j++;
 				}
 			}
@@ -414,23 +580,346 @@ public class ANNCADTree extends AbstractClassifier {
 		}
 		
 		/**
-		 * Exponential forgetting: the prediction is updated by multiplying by
-		 * lambda. Really time-consuming task.
+		 * Collapses into this block the children (and their subtrees) whose
+		 * mass of votes is lower than a minimum, and recursively in the
+		 * others.
 		 * 
-		 * @param lambda Forgetting factor.
-		 */
-		public void exponentialForgetting(double lambda) {
-			// Propagate the forgetting to its child.
-			if (mMaxDepth != mCurrentDepth) {
-				Iterator<Entry<String, Block>> it = mChilds.entrySet().iterator();
-				while (it.hasNext()) {
-					((Entry<String, Block>) it.next()).getValue()
-					   .exponentialForgetting(lambda);
+		 * @param minMass Minimum mass of votes.
+		 * @return Number of blocks removed.
+		 */
+		private int collapse (double minMass) {
+			int removed = 0, collapsed = 0;
+			Block child;
+			
+			if (mChilds == null)
+				return 0;
+			
+			for (int i = 0; i < mChilds.capacity(); i++) {
+				child = mChilds.valueAt(i);
+				
+				if (child == null)
+					continue;
+				
+				child.forget();
+				
+				if (child.mass() < minMass) {
+					removed += child.size();
+					mChilds.clear(i);
+					collapsed++;
+				}
+				else {
+					removed += child.collapse(minMass);
 				}
 			}
 			
+			if (collapsed > 0)
+				mChilds.compact();
+			
+			return removed;
+		}
+		
+		/**
+		 * Computes the mass of votes of the block.
+		 * 
+		 * @return Sum of the votes of all the classes.
+		 */
+		private double mass () {
+			double mass = 0;
+			
+			for (int i = 0; i < mVotesPerClass.length; i++)
+				mass += mVotesPerClass[i];
+			
+			return mass;
+		}
+		
+		/**
+		 * Computes the number of blocks of the subtree of this block.
+		 * 
+		 * @return Number of blocks, this one included.
+		 */
+		private int size () {
+			int size = 1;
+			
+			if (mChilds != null)
+				for (int i = 0; i < mChilds.capacity(); i++)
+					if (mChilds.valueAt(i) != null)
+						size += mChilds.valueAt(i).size();
+			
+			return size;
+		}
+		
+		/**
+		 * Estimates the memory used by the subtree of this block, with 
+		 * compressed references: 16 bytes of header for each array and 
+		 * object, 4 bytes for each reference.
+		 * 
+		 * @return Estimated number of bytes.
+		 */
+		private long bytes () {
+			long bytes = 56 + 16 + 8 * mVotesPerClass.length + 
+			              3 * (16 + 8 * mCentre.length);
+			
+			if (mChilds != null) {
+				bytes += mChilds.bytes();
+				
+				for (int i = 0; i < mChilds.capacity(); i++)
+					if (mChilds.valueAt(i) != null)
+						bytes += mChilds.valueAt(i).bytes();
+			}
+			
+			return bytes;
+		}
+		
+		/**
+		 * Exponential forgetting: the votes are multiplied by the forgetting
+		 * factor of the epochs passed since the block was last used.
+		 */
+		private void forget() {
+			double factor;
+			
+			if (mTime == mEpoch)
+				return;
+			
+			factor = forgettingFactor(mEpoch - mTime);
+			mTime = mEpoch;
+			
 			for (int i = 0; i < mVotesPerClass.length; i++)
-				mVotesPerClass[i] *= lambda;
+				mVotesPerClass[i] *= factor;
+		}
+	}
+	
+	/**
+	 * Open-addressing hash map (linear probing) from the codes of the cells
+	 * to the children of a block. Every code has the same number of words,
+	 * one for up to 64 attributes, and the keys are stored in a flat array.
+	 */
+	private static class CellMap implements Serializable {
+		
+		private static final long serialVersionUID = 3871440285714921618L;
+
+		/**
+		 * Number of words of each code.
+		 */
+		private int mWords;
+		
+		/**
+		 * Codes of the slots, mWords for each slot.
+		 */
+		private long[] mKeys;
+		
+		/**
+		 * Block of each slot, null if the slot is empty.
+		 */
+		private Block[] mValues;
+		
+		/**
+		 * Number of blocks in the map.
+		 */
+		private int mSize;
+		
+		/**
+		 * Creates an empty map.
+		 * 
+		 * @param words Number of words of each code.
+		 */
+		public CellMap (int words) {
+			mWords = words;
+			mKeys = new long[INITIAL_CHILD_SLOTS * words];
+			mValues = new Block[INITIAL_CHILD_SLOTS];
+		}
+		
+		/**
+		 * Returns the block of a code.
+		 * 
+		 * @param code Code of the cell.
+		 * @return Block, null if there is none.
+		 */
+		public Block get (long[] code) {
+			int slot = find(code);
+			
+			return slot < 0 ? null : mValues[slot];
+		}
+		
+		/**
+		 * Puts the block of a code that is not in the map.
+		 * 
+		 * @param code Code of the cell.
+		 * @param block Block.
+		 */
+		public void put (long[] code, Block block) {
+			if (2 * (mSize + 1) > mValues.length)
+				resize(2 * mValues.length);
+			
+			insert(code, 0, block);
+			mSize++;
+		}
+		
+		/**
+		 * Returns the number of slots, for iterating with valueAt.
+		 * 
+		 * @return Number of slots.
+		 */
+		public int capacity () {
+			return mValues.length;
+		}
+		
+		/**
+		 * Returns the block of a slot.
+		 * 
+		 * @param slot Slot.
+		 * @return Block, null if the slot is empty.
+		 */
+		public Block valueAt (int slot) {
+			return mValues[slot];
+		}
+		
+		/**
+		 * Removes the block of a slot. The map must be compacted before
+		 * looking for or putting codes again.
+		 * 
+		 * @param slot Slot.
+		 */
+		public void clear (int slot) {
+			mValues[slot] = null;
+			mSize--;
+		}
+		
+		/**
+		 * Inserts the blocks again after removing some of them, shrinking
+		 * the map if it has too many slots.
+		 */
+		public void compact () {
+			int slots = INITIAL_CHILD_SLOTS;
+			
+			while (2 * mSize > slots)
+				slots *= 2;
+			
+			resize(slots);
+		}
+		
+		/**
+		 * Estimates the memory used by the map, without the blocks.
+		 * 
+		 * @return Estimated number of bytes.
+		 */
+		public long bytes () {
+			return 32 + 16 + 8L * mKeys.length + 16 + 4L * mValues.length;
+		}
+		
+		/**
+		 * Returns the number of blocks in the map.
+		 * 
+		 * @return Number of blocks.
+		 */
+		public int size () {
+			return mSize;
+		}
+		
+		/**
+		 * Checks if the code of a slot is lower than the one of another slot,
+		 * comparing the last attributes first.
+		 * 
+		 * @param slot Slot.
+		 * @param other Other slot.
+		 * @return True if the code of slot is lower than the one of other.
+		 */
+		public boolean lowerCode (int slot, int other) {
+			long a, b;
+			
+			for (int i = mWords - 1; i >= 0; i--) {
+				a = mKeys[slot * mWords + i];
+				b = mKeys[other * mWords + i];
+				
+				// Unsigned comparison (Long.compareUnsigned needs Java 8).
+				if (a != b)
+					return (a ^ Long.MIN_VALUE) < (b ^ Long.MIN_VALUE);
+			}
+			
+			return false;
+		}
+		
+		/**
+		 * Looks for the slot of a code.
+		 * 
+		 * @param code Code of the cell.
+		 * @return Slot, -1 if the code is not in the map.
+		 */
+		private int find (long[] code) {
+			int mask = mValues.length - 1;
+			
+			for (int slot = hash(code, 0) & mask; mValues[slot] != null; 
+			      slot = (slot + 1) & mask) {
+				if (equals(code, slot))
+					return slot;
+			}
+			
+			return -1;
+		}
+		
+		/**
+		 * Inserts a block in the first empty slot of its code.
+		 * 
+		 * @param keys Array with the code.
+		 * @param from Position of the code in keys.
+		 * @param block Block.
+		 */
+		private void insert (long[] keys, int from, Block block) {
+			int mask = mValues.length - 1;
+			int slot = hash(keys, from) & mask;
+			
+			while (mValues[slot] != null)
+				slot = (slot + 1) & mask;
+			
+			System.arraycopy(keys, from, mKeys, slot * mWords, mWords);
+			mValues[slot] = block;
+		}
+		
+		/**
+		 * Changes the number of slots, inserting the blocks again.
+		 * 
+		 * @param slots New number of slots, a power of two.
+		 */
+		private void resize (int slots) {
+			long[] keys = mKeys;
+			Block[] values = mValues;
+			
+			mKeys = new long[slots * mWords];
+			mValues = new Block[slots];
+			
+			for (int i = 0; i < values.length; i++)
+				if (values[i] != null)
+					insert(keys, i * mWords, values[i]);
+		}
+		
+		/**
+		 * Checks if the code of a slot is the given one.
+		 * 
+		 * @param code Code of the cell.
+		 * @param slot Slot.
+		 * @return True if the codes are equal.
+		 */
+		private boolean equals (long[] code, int slot) {
+			for (int i = 0, j = slot * mWords; i < mWords; i++, j++)
+				if (mKeys[j] != code[i])
+					return false;
+			
+			return true;
+		}
+		
+		/**
+		 * Computes the hash of a code.
+		 * 
+		 * @param keys Array with the code.
+		 * @param from Position of the code in keys.
+		 * @return Hash of the code.
+		 */
+		private int hash (long[] keys, int from) {
+			long h = 0;
+			
+			for (int i = from; i < from + mWords; i++)
+				h = (h + keys[i]) * 0x9E3779B97F4A7C15L;
+			
+			return (int) (h ^ (h >>> 29) ^ (h >>> 47));
 		}
 	}
 }
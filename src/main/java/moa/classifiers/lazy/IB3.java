@@ -18,7 +18,9 @@
  */
 package moa.classifiers.lazy;
 
+import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Random;
 
 import com.github.javacliparser.FloatOption;
@@ -27,10 +29,11 @@ import com.yahoo.labs.samoa.instances.Instances;
 import com.yahoo.labs.samoa.instances.InstancesHeader;
 
 import moa.classifiers.AbstractClassifier;
-import moa.classifiers.lazy.neighboursearch.LinearNNSearch;
-import moa.classifiers.lazy.neighboursearch.NearestNeighbourSearch;
+import moa.classifiers.lazy.neighboursearch.EuclideanDistance;
 import moa.classifiers.lazy.neighboursearch.NormalizableDistance;
 import moa.core.Measurement;
+import utils.indexstructure.Distance;
+import utils.indexstructure.MTree;
 
 /**
  * Implementation of Instance-Based Learning (IB3). Presented in:
@@ -40,34 +43,135 @@ import moa.core.Measurement;
  * 
  * Fragments of code from: https://github.com/mblachnik/infoSel/
  * 
+ * The nearest acceptable instance and the instances within its distance 
+ * are queried from two metric trees: one over the acceptable instances and
+ * another over the whole window. The window is stored in slots: removed
+ * instances leave a hole, and the slots are compacted when the fraction of
+ * holes exceeds a threshold. If there are missing values, all the distances
+ * are computed instead.
+ * 
  * <p>
  * Valid options are:
  * <p>
  * -a confidence factor for acceptance <br>
  * -r confidence factor for removal <br>
+ * -t fraction of removed slots that triggers the compaction of the window <br>
  * 
  * @author Álvar Arnaiz-González
- * @version 20160518
+ * @version 20160701
  */
 public class IB3 extends AbstractClassifier {
 
 	private static final long serialVersionUID = 6741600855950416603L;
 
+	/**
+	 * Initial number of slots of the window.
+	 */
+	private static final int INITIAL_SLOTS = 64;
+
 	public FloatOption mAcceptable = new FloatOption("acceptable", 'a',
 			"Confidence factor for accept", 0.90, 0, 1);
 
 	public FloatOption mRemovable = new FloatOption("removable", 'r',
 			"Confidence factor for remove", 0.75, 0, 1);
 
-	private Instances mWindow;
+	public FloatOption mCompaction = new FloatOption("compactionThreshold", 't',
+			"Fraction of removed slots of the window that triggers its compaction", 
+			0.25, 0, 1);
+
+	/**
+	 * Instance of each slot of the window, null if it has been removed. The
+	 * slots are in order of arrival.
+	 */
+	private Instance[] mInstances;
+
+	/**
+	 * Entry of each slot of the window in the trees.
+	 */
+	private WindowEntry[] mEntries;
+
+	/**
+	 * Classification record of each slot: number of successes.
+	 */
+	private int[] mSuccesses;
+
+	/**
+	 * Classification record of each slot: number of failures.
+	 */
+	private int[] mFailures;
+
+	/**
+	 * Low end of the accuracy of each slot, for acceptance. Updated 
+	 * whenever its classification record changes.
+	 */
+	private double[] mMinInst;
+
+	/**
+	 * High end of the accuracy of each slot, for removal. Updated whenever
+	 * its classification record changes.
+	 */
+	private double[] mMaxInst;
+
+	/**
+	 * Number of slots used, with the removed ones.
+	 */
+	private int mNumSlots;
+
+	/**
+	 * Number of slots removed.
+	 */
+	private int mNumRemoved;
 
-	private NearestNeighbourSearch mSearch;
+	/**
+	 * Distance between instances: euclidean, not normalized. Its ranges 
+	 * (only used for missing values) are those of the window.
+	 */
+	private EuclideanDistance mDistance;
 
-	private ArrayList<int[]> mClassRecord;
+	/**
+	 * If the ranges of the distance must be computed again over the window:
+	 * the instances added extend them, but removing one at the boundary of
+	 * some range can shrink it.
+	 */
+	private boolean mRangesOutdated;
 
 	private int mClasses;
 
 	private int[] mFreqClasses;
+
+	/**
+	 * Sum of mFreqClasses.
+	 */
+	private int mTotalFreq;
+
+	/**
+	 * Bounds of the frequency of each class: low end for acceptance and high
+	 * end for removal. Updated whenever mFreqClasses changes.
+	 */
+	private double[] mMinClass, mMaxClass;
+
+	/**
+	 * Metric tree over the acceptable instances of the window (without 
+	 * missing values).
+	 */
+	private MTree<WindowEntry> mAcceptableTree;
+
+	/**
+	 * Metric tree over all the instances of the window (without missing 
+	 * values).
+	 */
+	private MTree<WindowEntry> mWindowTree;
+
+	/**
+	 * Number of instances of the window with missing values. The trees 
+	 * can't be used while there are some.
+	 */
+	private int mNumMissing;
+
+	/**
+	 * If each attribute (but the class) is nominal.
+	 */
+	private boolean[] mNominal;
 	
 	private Random mRandomGen;
 
@@ -80,17 +184,15 @@ public class IB3 extends AbstractClassifier {
 	@Override
     public double[] getVotesForInstance(Instance inst) {
 		double v[] = new double[mClasses];
+		int neighbour;
 		
-		try {
-			if (mWindow.numInstances() > 0) {	
-				Instance neighbour = mSearch.nearestNeighbour(inst);
-				
-				v[(int)neighbour.classValue()]++;
-			}
-		} catch(Exception e) {
-			System.err.println("Error: kNN search failed.");
-			e.printStackTrace();
-			return new double[inst.numClasses()];
+		if (mNumSlots - mNumRemoved > 0) {
+			if (mNumMissing > 0 || hasMissing(inst))
+				neighbour = nearestByScan(inst);
+			else
+				neighbour = nearest(mWindowTree, inst);
+			
+			v[(int)mInstances[neighbour].classValue()]++;
 		}
 		
 		return v;
@@ -98,34 +200,40 @@ public class IB3 extends AbstractClassifier {
 	
 	@Override
 	public void setModelContext(InstancesHeader context) {
-		try {
-			mWindow = new Instances(context, 0);
-			mWindow.setClassIndex(context.classIndex());
-			mClasses = mWindow.numClasses();
-		} catch (Exception e) {
-			System.err.println("Error: no Model Context available.");
-			e.printStackTrace();
-			System.exit(1);
-		}
+		mClasses = context.numClasses();
 	}
 
 	@Override
 	public void resetLearningImpl() {
-		mWindow = null;
+		mInstances = null;
+		mEntries = null;
+		mSuccesses = null;
+		mFailures = null;
+		mMinInst = null;
+		mMaxInst = null;
+		mNumSlots = 0;
+		mNumRemoved = 0;
+		mDistance = null;
+		mRangesOutdated = false;
 		mFreqClasses = null;
-		mSearch = null;
-		mClassRecord = null;
+		mTotalFreq = 0;
+		mMinClass = null;
+		mMaxClass = null;
+		mAcceptableTree = null;
+		mWindowTree = null;
+		mNumMissing = 0;
+		mNominal = null;
 		mRandomGen = null;
 	}
 
 	@Override
 	public void trainOnInstanceImpl(Instance inst) {
-		ArrayList<Integer> indexToRemove = new ArrayList<>();
-		double dis[] = new double[mWindow.numInstances()];
-		Instance sel = null;
+		ArrayList<Integer> slotsToRemove = new ArrayList<>();
+		double dis[];
+		int near[];
 		double bestDis = Double.POSITIVE_INFINITY;
 		boolean aceptable = false;
-		int indexSel;
+		int slotSel = -1, numNear = 0;
 
 		if (mRandomGen == null) {
 			mRandomGen = new Random(randomSeed);
@@ -133,161 +241,526 @@ public class IB3 extends AbstractClassifier {
 		
 		if (mFreqClasses == null) {
 			mFreqClasses = new int[mClasses];
+			mMinClass = new double[mClasses];
+			mMaxClass = new double[mClasses];
 		}
 		
-		if (mWindow == null) {
-			mWindow = new Instances(inst.dataset());
-		}
-		
-		if (mSearch == null) {
-			mSearch = new LinearNNSearch(mWindow);
-			((NormalizableDistance)mSearch.getDistanceFunction()).setDontNormalize(true);
+		if (mInstances == null) {
+			initWindow(inst);
 		}
 		
-		if (mClassRecord == null) {
-			mClassRecord = new ArrayList<int[]>();
-		}
-		
-		if (mWindow.numInstances() == 0) {
-			mWindow.add(inst);
-			mClassRecord.add(new int[]{1, 0});
-			mFreqClasses[(int) inst.classValue()]++;
+		if (mNumSlots - mNumRemoved == 0) {
+			addToWindow(inst);
 			return;
 		}
 		
-		// Step 1 of the IB3
-		// Compute all distances
-		for (int j = 0; j < mWindow.numInstances(); j++)
-			dis[j] = mSearch.getDistanceFunction().distance(mWindow.instance(j), inst);
-
-		// Step 2 of the IB3
-		// Look for the nearest "acceptable"
-		for (int j = 0; j < mWindow.numInstances(); j++) {
-			if (isAcceptable(mWindow.instance(j), j)) {
-				if (dis[j] < bestDis) {
-					aceptable = true;
-					indexSel = j;
-					bestDis = dis[j];
-					sel = mWindow.instance(j);
+		near = new int[mNumSlots];
+		
+		if (mNumMissing > 0 || hasMissing(inst)) {
+			// Step 1 of the IB3
+			// Compute all distances (the trees can't bound them)
+			dis = computeDistances(inst);
+	
+			// Step 2 of the IB3
+			// Look for the nearest "acceptable"
+			for (int j = 0; j < mNumSlots; j++) {
+				if (mInstances[j] != null && isAcceptable(j)) {
+					if (dis[j] < bestDis) {
+						aceptable = true;
+						slotSel = j;
+						bestDis = dis[j];
+					}
 				}
 			}
+			
+			for (int j = 0; j < mNumSlots; j++)
+				if (mInstances[j] != null && dis[j] <= bestDis)
+					near[numNear++] = j;
+		} else {
+			// Steps 1 and 2 of the IB3
+			// Query the nearest "acceptable"
+			slotSel = nearest(mAcceptableTree, inst);
+			
+			if (slotSel >= 0) {
+				aceptable = true;
+				bestDis = mDistance.distance(mInstances[slotSel], inst);
+				numNear = withinDistance(inst, bestDis, near);
+			} else {
+				for (int j = 0; j < mNumSlots; j++)
+					if (mInstances[j] != null)
+						near[numNear++] = j;
+			}
 		}
 
 		// If no one is acceptable, take randomly one
 		if (!aceptable) {
-			indexSel = mRandomGen.nextInt(mWindow.numInstances());
-			sel = mWindow.instance(indexSel);
+			slotSel = liveSlot(mRandomGen.nextInt(mNumSlots - mNumRemoved));
 		}
 
 		// Step 3 of the IB3
 		// If the class predicted is not correct -> Add inst as a new concept
-		if (inst.classValue() != sel.classValue()) {
-			mWindow.add(inst);
-			mClassRecord.add(new int[]{1, 0});
-			mFreqClasses[(int) inst.classValue()]++;
-			
-			try {
-				mSearch.update(inst);
-			} catch (Exception e) {
-				System.err.println("Error: kNN update failed.");
-				e.printStackTrace();
-			}
+		if (inst.classValue() != mInstances[slotSel].classValue()) {
+			addToWindow(inst);
 		}
 
 		// Step 4 of the IB3
-		// Update classification record
-		for (int i = 0; i < dis.length; i++) {
-			if (dis[i] <= bestDis) {
-				if (mWindow.instance(i).classValue() == inst.classValue()) {
-					mClassRecord.get(i)[0]++;
-				}
-				else {
-					mClassRecord.get(i)[1]++;
-				}
-				
-				if (isRemovable(mWindow.instance(i), i)) {
-					indexToRemove.add(i);
-				}
+		// Update classification record of the instances within bestDis
+		for (int j = 0; j < numNear; j++) {
+			int i = near[j];
+			
+			if (mInstances[i].classValue() == inst.classValue()) {
+				mSuccesses[i]++;
+			}
+			else {
+				mFailures[i]++;
+			}
+			
+			updateInstBounds(i);
+			
+			if (isRemovable(i)) {
+				slotsToRemove.add(i);
 			}
 		}
 		
 		// Remove instances marked
-		if (indexToRemove.size() > 0) {
-			// Remove
-			for (int i = indexToRemove.size() - 1; i >= 0; i--) {
-				mFreqClasses[(int)mWindow.instance(i).classValue()]--;
-				mWindow.delete(i);
-				mClassRecord.remove(i);
-			}
+		if (slotsToRemove.size() > 0) {
+			for (int slot : slotsToRemove)
+				removeFromWindow(slot);
+			
+			updateClassBounds();
 			
-			try {
-				mSearch.setInstances(mWindow);
-			} catch (Exception e) {
-				System.err.println("Error: kNN set failed.");
-				e.printStackTrace();
-			} 
+			if (mNumRemoved > mCompaction.getValue() * mNumSlots)
+				compactWindow();
 		}
 	}
 
 	/**
-	 * Computes if the instance is acceptable.
+	 * Creates the empty window, the distance and the trees.
+	 * 
+	 * @param inst First instance.
+	 */
+	private void initWindow(Instance inst) {
+		mInstances = new Instance[INITIAL_SLOTS];
+		mEntries = new WindowEntry[INITIAL_SLOTS];
+		mSuccesses = new int[INITIAL_SLOTS];
+		mFailures = new int[INITIAL_SLOTS];
+		mMinInst = new double[INITIAL_SLOTS];
+		mMaxInst = new double[INITIAL_SLOTS];
+		mNumSlots = 0;
+		mNumRemoved = 0;
+		
+		mDistance = new EuclideanDistance(new Instances(inst.dataset(), 0));
+		mDistance.setDontNormalize(true);
+		mRangesOutdated = true;
+		
+		mNominal = new boolean[inst.numAttributes() - 1];
+		
+		for (int i = 0, j = 0; i < inst.numAttributes(); i++)
+			if (i != inst.classIndex())
+				mNominal[j++] = inst.attribute(i).isNominal();
+		
+		mAcceptableTree = newTree();
+		mWindowTree = newTree();
+	}
+
+	/**
+	 * Adds an instance to the window (and to the trees) in a new slot, 
+	 * with a new classification record.
 	 * 
 	 * @param inst Instance.
-	 * @param instIndex Index of the instance in the window.
-	 * @return True if inst is acceptable.
 	 */
-	private boolean isAcceptable(Instance inst, int instIndex) {
-		double n, aux;
-		double minInst, minClass;
+	private void addToWindow(Instance inst) {
+		int slot;
+		
+		if (mNumSlots == mInstances.length)
+			growWindow();
+		
+		slot = mNumSlots++;
+		mInstances[slot] = inst.copy();
+		
+		if (!mRangesOutdated)
+			mDistance.update(mInstances[slot]);
+		
+		mEntries[slot] = new WindowEntry(mInstances[slot], slot);
+		
+		// The distance of the trees is not defined for missing values
+		if (mEntries[slot].mMissing)
+			mNumMissing++;
+		else
+			mWindowTree.add(mEntries[slot]);
 		
-		n = (double) (mClassRecord.get(instIndex)[0] + mClassRecord.get(instIndex)[1]);
-		aux = (double) mClassRecord.get(instIndex)[0];
+		mSuccesses[slot] = 1;
+		mFailures[slot] = 0;
+		updateInstBounds(slot);
+		addFreqClass(inst, 1);
+	}
 
-		minInst = minConfidence(aux, n, mAcceptable.getValue());
+	/**
+	 * Removes the instance of a slot from the window (and from the trees),
+	 * leaving a hole. The bounds of the classes must be updated afterwards.
+	 * 
+	 * @param slot Slot.
+	 */
+	private void removeFromWindow(int slot) {
+		WindowEntry entry = mEntries[slot];
+		
+		if (entry.mMissing)
+			mNumMissing--;
+		else {
+			if (entry.mAcceptable)
+				mAcceptableTree.remove(entry);
+			
+			mWindowTree.remove(entry);
+		}
+		
+		if (!mRangesOutdated && atRangeBoundary(entry.mInst))
+			mRangesOutdated = true;
+		
+		mFreqClasses[(int)entry.mInst.classValue()]--;
+		mTotalFreq--;
+		mInstances[slot] = null;
+		mEntries[slot] = null;
+		mNumRemoved++;
+	}
 
-		n = 0;
-		for (int i = 0; i < mClasses; i++)
-			n = n + (double) mFreqClasses[i];
+	/**
+	 * Checks if an instance is at the boundary of some range of the 
+	 * distance, so that the range could shrink without it.
+	 * 
+	 * @param inst Instance.
+	 * @return True if some value is the minimum or the maximum of its range.
+	 */
+	private boolean atRangeBoundary(Instance inst) {
+		double[][] ranges;
+		
+		try {
+			ranges = mDistance.getRanges();
+		} catch (Exception e) {
+			return true;
+		}
+		
+		for (int i = 0; i < inst.numAttributes(); i++)
+			if (i != inst.classIndex() && !inst.isMissing(i) &&
+			      (inst.value(i) == ranges[i][NormalizableDistance.R_MIN] ||
+			       inst.value(i) == ranges[i][NormalizableDistance.R_MAX]))
+				return true;
+		
+		return false;
+	}
 
-		aux = (double) mFreqClasses[(int)inst.classValue()];
+	/**
+	 * Moves the instances of the window to the first slots, keeping their
+	 * order, so that there are no holes.
+	 */
+	private void compactWindow() {
+		int num = 0;
+		
+		for (int i = 0; i < mNumSlots; i++) {
+			if (mInstances[i] == null)
+				continue;
+			
+			mInstances[num] = mInstances[i];
+			mEntries[num] = mEntries[i];
+			mEntries[num].mSlot = num;
+			mSuccesses[num] = mSuccesses[i];
+			mFailures[num] = mFailures[i];
+			mMinInst[num] = mMinInst[i];
+			mMaxInst[num] = mMaxInst[i];
+			num++;
+		}
+		
+		Arrays.fill(mInstances, num, mNumSlots, null);
+		Arrays.fill(mEntries, num, mNumSlots, null);
+		mNumSlots = num;
+		mNumRemoved = 0;
+	}
 
-		minClass = minConfidence(aux, n, mAcceptable.getValue());
+	/**
+	 * Doubles the number of slots of the window.
+	 */
+	private void growWindow() {
+		int length = mInstances.length * 2;
+		
+		mInstances = Arrays.copyOf(mInstances, length);
+		mEntries = Arrays.copyOf(mEntries, length);
+		mSuccesses = Arrays.copyOf(mSuccesses, length);
+		mFailures = Arrays.copyOf(mFailures, length);
+		mMinInst = Arrays.copyOf(mMinInst, length);
+		mMaxInst = Arrays.copyOf(mMaxInst, length);
+	}
 
-		if (minInst > minClass)
-			return true;
+	/**
+	 * Computes the ranges of the distance over the instances of the window,
+	 * if they are outdated. The distance of the instances without missing 
+	 * values doesn't depend on them.
+	 */
+	private void updateRanges() {
+		Instances window;
+		
+		if (!mRangesOutdated)
+			return;
+		
+		window = new Instances(mInstances[liveSlot(0)].dataset(), 
+		                       mNumSlots - mNumRemoved);
+		
+		for (int i = 0; i < mNumSlots; i++)
+			if (mInstances[i] != null)
+				window.add(mInstances[i]);
+		
+		mDistance = new EuclideanDistance(window);
+		mDistance.setDontNormalize(true);
+		mRangesOutdated = false;
+	}
 
-		return false;
+	/**
+	 * Returns the slot of the i-th instance of the window.
+	 * 
+	 * @param index Index of the instance, skipping the removed slots.
+	 * @return Slot.
+	 */
+	private int liveSlot(int index) {
+		if (mNumRemoved == 0)
+			return index;
+		
+		for (int i = 0; i < mNumSlots; i++)
+			if (mInstances[i] != null && index-- == 0)
+				return i;
+		
+		return -1;
 	}
 
 	/**
-	 * Computes if an instance is removable.
+	 * Returns the slot of the nearest instance of a tree; among those at
+	 * the same distance, the first one of the window.
 	 * 
+	 * @param tree Tree.
 	 * @param inst Instance.
-	 * @param instIndex Index of the instance in the window.
-	 * @return True if inst is removable.
+	 * @return Slot, -1 if the tree is empty.
 	 */
-	boolean isRemovable(Instance inst, int instIndex) {
-		double n, aux;
-		double maxInst, maxClass;
+	private int nearest(MTree<WindowEntry> tree, Instance inst) {
+		WindowEntry query = new WindowEntry(inst, -1);
+		double bestDis = Double.POSITIVE_INFINITY, dis, radius;
+		int best = -1;
+		
+		radius = tree.nearestDistance(query);
 		
-		n = (double) (mClassRecord.get(instIndex)[0] + mClassRecord.get(instIndex)[1]);
-		aux = (double) mClassRecord.get(instIndex)[0];
+		if (Double.isInfinite(radius))
+			return -1;
+		
+		// The ties of the tree and the distance can differ by rounding errors.
+		for (WindowEntry entry : tree.rangeQuery(query, 
+		                                         radius * (1 + 1e-9) + 1e-12)) {
+			dis = mDistance.distance(entry.mInst, inst);
+			
+			if (dis < bestDis || (dis == bestDis && entry.mSlot < best)) {
+				bestDis = dis;
+				best = entry.mSlot;
+			}
+		}
+		
+		return best;
+	}
 
-		maxInst = maxConfidence(aux, n, mRemovable.getValue());
+	/**
+	 * Returns the slot of the nearest instance of the window, checking all
+	 * of them; among those at the same distance, the first one.
+	 * 
+	 * @param inst Instance.
+	 * @return Slot, -1 if the window is empty.
+	 */
+	private int nearestByScan(Instance inst) {
+		double[] dis = computeDistances(inst);
+		double bestDis = Double.POSITIVE_INFINITY;
+		int best = -1;
+		
+		for (int i = 0; i < mNumSlots; i++) {
+			if (mInstances[i] == null)
+				continue;
+			
+			if (best < 0 || dis[i] < bestDis) {
+				bestDis = dis[i];
+				best = i;
+			}
+		}
+		
+		return best;
+	}
 
-		n = 0;
-		for (int i = 0; i < mClasses; i++)
-			n = n + (double) mFreqClasses[i];
+	/**
+	 * Computes the distances of all the instances of the window to an 
+	 * instance.
+	 * 
+	 * @param inst Instance.
+	 * @return Distance of each slot (0 for the removed ones).
+	 */
+	private double[] computeDistances(Instance inst) {
+		double[] dis = new double[mNumSlots];
+		
+		updateRanges();
+		
+		for (int j = 0; j < mNumSlots; j++)
+			if (mInstances[j] != null)
+				dis[j] = mDistance.distance(mInstances[j], inst);
+		
+		return dis;
+	}
 
-		aux = (double) mFreqClasses[(int)inst.classValue()];
+	/**
+	 * Finds the instances of the window within a distance.
+	 * 
+	 * @param inst Instance.
+	 * @param radius Distance.
+	 * @param near Array to store the slots found, sorted.
+	 * @return Number of instances found.
+	 */
+	private int withinDistance(Instance inst, double radius, int[] near) {
+		int num = 0;
+		
+		for (WindowEntry entry : mWindowTree.rangeQuery(new WindowEntry(inst, -1), 
+		                                             radius * (1 + 1e-9) + 1e-12))
+			if (mDistance.distance(entry.mInst, inst) <= radius)
+				near[num++] = entry.mSlot;
+		
+		Arrays.sort(near, 0, num);
+		
+		return num;
+	}
 
-		maxClass = maxConfidence(aux, n, mRemovable.getValue());
+	/**
+	 * Moves an instance into or out of the tree of acceptable instances
+	 * if its state has changed.
+	 * 
+	 * @param slot Slot of the instance.
+	 */
+	private void updateAcceptable(int slot) {
+		WindowEntry entry = mEntries[slot];
+		boolean acceptable = isAcceptable(slot);
+		
+		if (acceptable == entry.mAcceptable)
+			return;
+		
+		entry.mAcceptable = acceptable;
+		
+		if (entry.mMissing)
+			return;
+		
+		if (acceptable)
+			mAcceptableTree.add(entry);
+		else
+			mAcceptableTree.remove(entry);
+	}
 
-		if (maxInst < maxClass)
-			return true;
+	/**
+	 * Creates an empty metric tree over the instances of the window. Its 
+	 * distance is the one of the window (euclidean, not normalized) over
+	 * the values of the entries, which can only differ from it by rounding
+	 * errors.
+	 * 
+	 * @return Metric tree.
+	 */
+	private MTree<WindowEntry> newTree() {
+		return new MTree<WindowEntry>(new Distance<WindowEntry>() {
+			private static final long serialVersionUID = 1L;
+			
+			public double distance(WindowEntry e1, WindowEntry e2) {
+				double sum = 0, diff;
+				
+				for (int i = 0; i < mNominal.length; i++) {
+					if (mNominal[i])
+						diff = (int) e1.mValues[i] != (int) e2.mValues[i] ? 1 : 0;
+					else
+						diff = e1.mValues[i] - e2.mValues[i];
+					
+					sum += diff * diff;
+				}
+				
+				return Math.sqrt(sum);
+			}
+		}, 6, 15);
+	}
 
+	/**
+	 * Checks if an instance has missing values (the class is ignored).
+	 * 
+	 * @param inst Instance.
+	 * @return True if some attribute is missing.
+	 */
+	private static boolean hasMissing(Instance inst) {
+		for (int i = 0; i < inst.numAttributes(); i++)
+			if (i != inst.classIndex() && inst.isMissing(i))
+				return true;
+		
 		return false;
 	}
+
+	/**
+	 * Updates the bounds of an instance after its classification record has
+	 * changed.
+	 * 
+	 * @param slot Slot of the instance.
+	 */
+	private void updateInstBounds(int slot) {
+		double n = (double) (mSuccesses[slot] + mFailures[slot]);
+		
+		mMinInst[slot] = minConfidence((double) mSuccesses[slot], n, 
+		                               mAcceptable.getValue());
+		mMaxInst[slot] = maxConfidence((double) mSuccesses[slot], n, 
+		                               mRemovable.getValue());
+		updateAcceptable(slot);
+	}
+
+	/**
+	 * Changes the frequency of the class of an instance and updates the 
+	 * bounds of all the classes (their total has changed).
+	 * 
+	 * @param inst Instance.
+	 * @param delta Change of the frequency.
+	 */
+	private void addFreqClass(Instance inst, int delta) {
+		mFreqClasses[(int) inst.classValue()] += delta;
+		mTotalFreq += delta;
+		updateClassBounds();
+	}
+
+	/**
+	 * Updates the bounds of the frequency of all the classes.
+	 */
+	private void updateClassBounds() {
+		double n = (double) mTotalFreq;
+		
+		for (int i = 0; i < mClasses; i++) {
+			mMinClass[i] = minConfidence((double) mFreqClasses[i], n, 
+			                             mAcceptable.getValue());
+			mMaxClass[i] = maxConfidence((double) mFreqClasses[i], n, 
+			                             mRemovable.getValue());
+		}
+		
+		for (int i = 0; i < mNumSlots; i++)
+			if (mInstances[i] != null)
+				updateAcceptable(i);
+	}
+
+	/**
+	 * Computes if the instance is acceptable.
+	 * 
+	 * @param slot Slot of the instance.
+	 * @return True if the instance is acceptable.
+	 */
+	private boolean isAcceptable(int slot) {
+		
+		return mMinInst[slot] > mMinClass[(int)mInstances[slot].classValue()];
+	}
+
+	/**
+	 * Computes if an instance is removable.
+	 * 
+	 * @param slot Slot of the instance.
+	 * @return True if the instance is removable.
+	 */
+	boolean isRemovable(int slot) {
+		
+		return mMaxInst[slot] < mMaxClass[(int)mInstances[slot].classValue()];
+	}
 	
     /**
      * Returns high end of confidence interval, given:
@@ -351,4 +824,48 @@ public class IB3 extends AbstractClassifier {
 	public void getModelDescription(StringBuilder out, int indent) {
 	}
 
+	/**
+	 * Instance of the window in the trees.
+	 */
+	private static class WindowEntry implements Serializable {
+		
+		private static final long serialVersionUID = 3305386227307185941L;
+
+		/**
+		 * Instance.
+		 */
+		private Instance mInst;
+		
+		/**
+		 * Values of the attributes of the instance, without the class.
+		 */
+		private double[] mValues;
+		
+		/**
+		 * Slot of the instance in the window.
+		 */
+		private int mSlot;
+		
+		/**
+		 * If the instance is acceptable.
+		 */
+		private boolean mAcceptable;
+		
+		/**
+		 * If the instance has missing values: it is not in the trees.
+		 */
+		private boolean mMissing;
+		
+		public WindowEntry (Instance inst, int slot) {
+			mInst = inst;
+			mSlot = slot;
+			mValues = new double[inst.numAttributes() - 1];
+			mMissing = hasMissing(inst);
+			
+			for (int i = 0, j = 0; i < inst.numAttributes(); i++)
+				if (i != inst.classIndex())
+					mValues[j++] = inst.value(i);
+		}
+	}
+
 }
@@ -18,8 +18,6 @@
  */
 package moa.classifiers.lazy;
 
-import java.util.Hashtable;
-
 import weka.core.Utils;
 
 import com.github.javacliparser.FloatOption;
@@ -27,9 +25,7 @@ import com.yahoo.labs.samoa.instances.Instance;
 import com.yahoo.labs.samoa.instances.Instances;
 import com.yahoo.labs.samoa.instances.InstancesHeader;
 
-import moa.classifiers.lazy.neighboursearch.KDTree;
-import moa.classifiers.lazy.neighboursearch.LinearNNSearch;
-import moa.classifiers.lazy.neighboursearch.NearestNeighbourSearch;
+import moa.classifiers.lazy.neighboursearch.InstanceSlotMap;
  
 /**
  * Implementation of Locally-Weighted Forgetting (LWF). Presented in:
@@ -60,48 +56,68 @@ public class LWF extends WFkNN {
 	public FloatOption mMaximumDecayRate = new FloatOption("maxDecayRate", 'm',
 	        "Maximum decay rate", 0.8, 0, 1);
 
-	private Hashtable<String, Double> mWeightes;
+	/**
+	 * Slot of each instance of the window.
+	 */
+	private InstanceSlotMap mSlots;
+
+	/**
+	 * Weight of the instance of each slot.
+	 */
+	private double[] mWeights;
 
-	private NearestNeighbourSearch mSearch;
+	/**
+	 * Position in the window of the instance of each slot.
+	 */
+	private int[] mWindowPos;
+
+	/**
+	 * Slot of the instance at each position of the window.
+	 */
+	private int[] mPosSlot;
 
 	@Override
 	public void trainOnInstanceImpl(Instance inst) {
 		Instances nn;
 		double[] distNN;
 		double forgetting, w;
-		boolean change = false;
-		int k;
+		int k, slot;
 
 		if (mWindow == null)
 			mWindow = new Instances(inst.dataset());
 
-		if (mWeightes == null)
-			mWeightes = new Hashtable<>();
-
-		if (mSearch == null) {
-			if (nearestNeighbourSearchOption.getChosenIndex()== 0) {
-				mSearch = new LinearNNSearch(mWindow);
-			} else {
-				mSearch = new KDTree(mWindow);
-			}
+		if (mSlots == null) {
+			mSlots = new InstanceSlotMap();
+			mWeights = new double[16];
+			mWindowPos = new int[16];
+			mPosSlot = new int[16];
 		}
 
 		try {
-			if (!mWeightes.containsKey(inst.toString())) {
+			if (mSlots.find(inst) == -1) {
 				mWindow.add(inst);
-				mWeightes.put(inst.toString(), 1.0);
-				mSearch.update(inst);
+				slot = mSlots.add(mWindow.instance(mWindow.numInstances() - 1));
+				
+				if (slot == mWeights.length || 
+				      mWindow.numInstances() > mPosSlot.length)
+					growSlots();
+				
+				mWeights[slot] = 1.0;
+				mWindowPos[slot] = mWindow.numInstances() - 1;
+				mPosSlot[mWindow.numInstances() - 1] = slot;
+				addToSearch(inst);
 			}
 
 			// k + 2 because the first is always inst and the last only is
 			// considered for the formule.
 			k = (int)Math.ceil(mWindow.numInstances() * mBeta.getValue());
-			nn = mSearch.kNearestNeighbours(inst, k + 2);
+			nn = getSearch().kNearestNeighbours(inst, k + 2);
 			distNN = mSearch.getDistances();
 
 			// for each neighbor reduce its weight
 			for (int i = 1; i < nn.numInstances() - 1; i++) {
-				w = mWeightes.get(nn.get(i).toString());
+				slot = mSlots.find(nn.get(i));
+				w = mWeights[slot];
 				forgetting = mMaximumDecayRate.getValue() + 
 				              ((1 - mMaximumDecayRate.getValue()) * 
 				               (Math.pow(distNN[i], 2) / 
@@ -109,17 +125,11 @@ public class LWF extends WFkNN {
 				
 				w *= forgetting;
 				
-				mWeightes.put(nn.get(i).toString(), w);
+				mWeights[slot] = w;
 				
-				if (w < mTheta.getValue()) {
-					removeFromWindow(nn.get(i));
-					change = true;
-				}
+				if (w < mTheta.getValue())
+					removeFromWindow(slot);
 			}
-			
-			// update the search if at least one instance is removed
-			if (change)
-				mSearch.setInstances(mWindow);
 		} catch (Exception e) {
 			 System.err.println("Error: kNN search failed.");
 			 e.printStackTrace();
@@ -127,18 +137,43 @@ public class LWF extends WFkNN {
 	}
 
 	/**
-	 * Remove an instance from the window.
+	 * Remove an instance from the window. The last instance of the window 
+	 * takes its position.
 	 * 
-	 * @param inst instance to remove from the window.
+	 * @param slot slot of the instance to remove from the window.
+	 * @throws Exception if the search could not be updated.
 	 */
-	private void removeFromWindow(Instance inst) {
-		for (int i = 0; i < mWindow.numInstances(); i++) {
-			if (compare(inst, mWindow.instance(i)) == 0) {
-				mWeightes.remove(mWindow.instance(i).toString());
-				mWindow.delete(i);
-				return;
-			}
+	private void removeFromWindow(int slot) throws Exception {
+		Instance inst = mSlots.get(slot);
+		int pos = mWindowPos[slot];
+		int last = mWindow.numInstances() - 1;
+		
+		if (pos != last) {
+			mWindow.set(pos, mWindow.instance(last));
+			mPosSlot[pos] = mPosSlot[last];
+			mWindowPos[mPosSlot[pos]] = pos;
 		}
+		
+		mWindow.delete(last);
+		mSlots.remove(slot);
+		removeFromSearch(inst);
+	}
+
+	/**
+	 * Doubles the arrays indexed by slot or by position in the window.
+	 */
+	private void growSlots() {
+		double[] weights = new double[mWeights.length * 2];
+		int[] windowPos = new int[mWindowPos.length * 2];
+		int[] posSlot = new int[mPosSlot.length * 2];
+		
+		System.arraycopy(mWeights, 0, weights, 0, mWeights.length);
+		System.arraycopy(mWindowPos, 0, windowPos, 0, mWindowPos.length);
+		System.arraycopy(mPosSlot, 0, posSlot, 0, mPosSlot.length);
+		
+		mWeights = weights;
+		mWindowPos = windowPos;
+		mPosSlot = posSlot;
 	}
 	
 	/**
@@ -188,9 +223,11 @@ public class LWF extends WFkNN {
 	
 	@Override
 	public void resetLearningImpl() {
-		mWeightes = null;
-		mWindow = null;
-		mSearch = null;
+		super.resetLearningImpl();
+		mSlots = null;
+		mWeights = null;
+		mWindowPos = null;
+		mPosSlot = null;
 	}
 
 	public String getPurposeString() {
@@ -18,19 +18,20 @@
  */
 package moa.classifiers.lazy;
 
+import java.util.Arrays;
 import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import com.github.javacliparser.FloatOption;
 import com.github.javacliparser.IntOption;
-import com.yahoo.labs.samoa.instances.DenseInstance;
+import com.github.javacliparser.MultiChoiceOption;
 import com.yahoo.labs.samoa.instances.Instance;
 import com.yahoo.labs.samoa.instances.Instances;
 import com.yahoo.labs.samoa.instances.InstancesHeader;
 
 import moa.classifiers.AbstractClassifier;
-import moa.classifiers.lazy.neighboursearch.EuclideanDistance;
-import moa.classifiers.lazy.neighboursearch.LinearNNSearch;
-import moa.classifiers.lazy.neighboursearch.NearestNeighbourSearch;
+import moa.classifiers.lazy.neighboursearch.RingInstances;
 import moa.core.Measurement;
 
 /**
@@ -49,6 +50,16 @@ import moa.core.Measurement;
  * value is based on the sliding window.<br>
  * Initially the code vectors are centered at 0.5 and there
  * are the same number for each class.<br> 
+ * The code vectors are stored contiguously in an array, and the nearest 
+ * code vector, the distances and the update are computed in a single pass
+ * over it. The distances are the euclidean ones of MOA: not normalized for
+ * the training and normalized with the ranges of the code vectors for the
+ * prediction.<br>
+ * The offline learning can be the sequential LVQ or a batch LVQ: in each 
+ * epoch the winners of the window are computed with the code vectors fixed
+ * (split among several threads), and then each code vector is moved by the
+ * mean of its updates. The batch results don't depend on the number of 
+ * threads.<br>
  * <p>
  * Valid options are:
  * n nearest neighbour search to use <p>
@@ -57,9 +68,13 @@ import moa.core.Measurement;
  * e number of epochs <p>
  * l learning rate <p>
  * w window limit of the training window <p>
+ * b replay budget: window instances replayed per online step, -1 for 
+ * epochs over the whole window <p>
+ * o offline learning: sequential or batch LVQ <p>
+ * p number of threads for the batch offline learning <p>
  * 
  * @author Álvar Arnaiz-González
- * @version 20160524
+ * @version 20160701
  */
 public class OLVQ extends AbstractClassifier {
 
@@ -83,25 +98,91 @@ public class OLVQ extends AbstractClassifier {
 	public IntOption mWindowLimit = new IntOption("windowLimit", 'w', 
 	         "Limit of the training window", 300, 1, Integer.MAX_VALUE);
 
+	public IntOption mReplayBudget = new IntOption("replayBudget", 'b', 
+	         "Instances of the window replayed after each new instance (streaming online learning), -1 for epochs over the whole window", 
+	         -1, -1, Integer.MAX_VALUE);
+
+	public MultiChoiceOption mOfflineMode = new MultiChoiceOption(
+	        "offlineMode", 'o', "Offline learning over the initial window",
+	        new String[] {"Sequential", "Batch"},
+	        new String[] {"Sequential LVQ: the winner is updated after each instance.",
+	                      "Batch LVQ: the winners are updated after each epoch, computed in parallel."},
+	        0);
+
+	public IntOption mNumThreads = new IntOption("numThreads", 'p',
+	         "Number of threads for the batch offline learning, 0 for all the processors",
+	         1, 0, Integer.MAX_VALUE);
+
+	/**
+	 * Minimum number of instances of each partition of the window in the 
+	 * batch offline learning.
+	 */
+	private static final int BATCH_CHUNK = 256;
+	
 	/**
-	 * Sliding window for training.
+	 * Maximum number of partitions of the window in the batch offline 
+	 * learning: each one needs its own updates of the code vectors.
+	 */
+	private static final int MAX_PARTITIONS = 32;
+
+	/**
+	 * Sliding window for training, in a ring buffer: the oldest instance is
+	 * deleted without shifting the others.
 	 */
 	private Instances mTrainWindow;
 	
 	/**
-	 * Code vectors of LVQ.
+	 * Code vectors of LVQ: the values of the attributes (but the class) of
+	 * the i-th code vector are at [i * mNumAtts, (i + 1) * mNumAtts).
 	 */
-	private Instances mCodeVectors;
+	private double[] mCodeVectors;
 	
 	/**
-	 * Wether is in offline or online step.
+	 * Class of each code vector.
 	 */
-	private boolean mOffline;
-
+	private int[] mLabels;
+	
+	/**
+	 * Number of code vectors.
+	 */
+	private int mNumCodeVectors;
+	
+	/**
+	 * Number of attributes of the code vectors (all but the class).
+	 */
+	private int mNumAtts;
+	
+	/**
+	 * Index in the instances of each attribute of the code vectors.
+	 */
+	private int[] mAttIndex;
+	
+	/**
+	 * If each attribute of the code vectors is nominal.
+	 */
+	private boolean[] mNominal;
+	
+	/**
+	 * Minimum and maximum of each attribute of the code vectors. They are
+	 * computed at the beginning of each training (for the missing values) 
+	 * and of each prediction.
+	 */
+	private double[] mMin, mMax;
+	
+	/**
+	 * Distance of the new instance to each code vector (buffer).
+	 */
+	private double[] mDistances;
+	
+	/**
+	 * Values of the instance being learned (buffer).
+	 */
+	private double[] mSample, mTarget;
+	
 	/**
-	 * Index of the code vectors.
+	 * Wether is in offline or online step.
 	 */
-    private int[] mClusterList;
+	private boolean mOffline;
     
     /**
      * Epochs of the online step.
@@ -113,7 +194,15 @@ public class OLVQ extends AbstractClassifier {
      */
     private double mCurrLearnRate;
     
-    private long mInstancesRead;
+    /**
+     * Random generator for the instances replayed.
+     */
+    private Random mReplayRandom;
+    
+    /**
+     * Pool of threads for the batch offline learning.
+     */
+    private transient ForkJoinPool mPool;
     
 	@Override
 	public boolean isRandomizable() {
@@ -124,10 +213,9 @@ public class OLVQ extends AbstractClassifier {
 	@Override
 	public void setModelContext(InstancesHeader context) {
 		try {
-			mTrainWindow = new Instances(context, 0);
+			mTrainWindow = new RingInstances(context);
 			mTrainWindow.setClassIndex(context.classIndex());
-			mCodeVectors = new Instances(context, 0);
-			mCodeVectors.setClassIndex(context.classIndex());
+			initCodeVectors(mTrainWindow);
 		} catch (Exception e) {
 			System.err.println("Error: no Model Context available.");
 			e.printStackTrace();
@@ -144,18 +232,32 @@ public class OLVQ extends AbstractClassifier {
 	 */
     public double[] getVotesForInstance(Instance inst) {
 		double v[] = new double[inst.numClasses()];
+		double dist, minDist = Double.POSITIVE_INFINITY;
+		int neighbour = -1;
 		
-		try {
-			NearestNeighbourSearch search = new LinearNNSearch(mCodeVectors);
+		if (mCodeVectors == null || mNumCodeVectors == 0)
+			return v;
+		
+		// Ranges of the code vectors at this moment.
+		updateRanges();
+		
+		for (int i = 0, off = 0; i < mNumCodeVectors; i++, off += mNumAtts) {
+			dist = 0;
 			
-			if (mCodeVectors != null) {	
-				Instance neighbours = search.nearestNeighbour(inst);
-				v[(int)neighbours.classValue()]++;
+			for (int j = 0; j < mNumAtts; j++) {
+				double diff = normDifference(j, inst.value(mAttIndex[j]), 
+				                             mCodeVectors[off + j]);
+				dist += diff * diff;
+			}
+			
+			if (neighbour < 0 || dist < minDist) {
+				minDist = dist;
+				neighbour = i;
 			}
-		} catch(Exception e) {
-			return new double[inst.numClasses()];
 		}
 		
+		v[mLabels[neighbour]]++;
+		
 		return v;
     }
 
@@ -163,27 +265,28 @@ public class OLVQ extends AbstractClassifier {
 	public void resetLearningImpl() {
 		mTrainWindow = null;
 		mCodeVectors = null;
-		mClusterList = null;
+		mLabels = null;
+		mNumCodeVectors = 0;
+		mReplayRandom = null;
 		mOffline = true;
 	}
 
 	@Override
 	public void trainOnInstanceImpl(Instance inst) {
 		if (mTrainWindow == null) {
-			mTrainWindow = new Instances(inst.dataset());
+			mTrainWindow = new RingInstances(inst.dataset());
+			mTrainWindow.setClassIndex(inst.dataset().classIndex());
 		}
 		
 		if (mCodeVectors == null) {
-			mCodeVectors = new Instances(inst.dataset());
+			initCodeVectors(inst.dataset());
 		}
 		
-		mInstancesRead++;
-		
 		// a) Offline learning
 		if (mOffline) {
 			if (mTrainWindow.numInstances() < mInitialLearning.getValue()) {
 				mTrainWindow.add(inst);
-				mCodeVectors.add(inst);
+				addCodeVector(inst, (int) inst.classValue());
 			} else {
 				mOffline = false;
 				mOnlineEpochs = mNumEpochs.getValue();
@@ -201,17 +304,13 @@ public class OLVQ extends AbstractClassifier {
 			if (mWindowLimit.getValue() <= mTrainWindow.numInstances())
 				mTrainWindow.delete(0);
 			
-			onlineLearning (inst);
+			if (mReplayBudget.getValue() < 0)
+				onlineLearning (inst);
+			else
+				streamingLearning (inst);
 			
 			if (mOnlineEpochs > 1)
 				mOnlineEpochs -= 1;
-			
-			if (mInstancesRead > 5000) {
-				System.out.println ("Results:");
-				for (int i = 0; i < mCodeVectors.numInstances(); i++)
-					System.out.println (mCodeVectors.instance(i));
-			}
-
 		}
 	}
 
@@ -219,46 +318,166 @@ public class OLVQ extends AbstractClassifier {
 	 * First training: offline.
 	 */
 	private void buildOffline() {
-		int winningNeuron;
+		int winningNeuron, off, numPartitions, partitionSize;
+		double[][] deltas = null;
+		int[][] counts = null;
+		boolean batch = mOfflineMode.getChosenIndex() == 1;
 
-		mCodeVectors = initClusters();
-
-		// init the pointList (used in EuclideanDistance.closestPoint)
-		mClusterList = new int[mNumCodeVect.getValue()];
+		initClusters();
+		mReplayRandom = new Random(randomSeed);
+		
+		// The ranges are those of the initial code vectors
+		updateRanges();
 		
-		for (int i = 0; i < mClusterList.length; i++)
-			mClusterList[i] = i;
+		// Partitions of the window, independent of the number of threads
+		partitionSize = Math.max(BATCH_CHUNK, (mTrainWindow.numInstances() + 
+		                           MAX_PARTITIONS - 1) / MAX_PARTITIONS);
+		numPartitions = (mTrainWindow.numInstances() + partitionSize - 1) / 
+		                  partitionSize;
 		
-		// init euclidean distance
-		EuclideanDistance distance = new EuclideanDistance(mCodeVectors);
-		distance.setDontNormalize(true);
+		if (batch) {
+			deltas = new double[numPartitions][mNumCodeVectors * mNumAtts];
+			counts = new int[numPartitions][mNumCodeVectors];
+		}
 
-		try {
-			for (int epoch = 0; epoch < mNumEpochs.getValue(); epoch++) {
-				for (int instance = 0; instance < mTrainWindow.numInstances(); instance++) {
-					winningNeuron = distance.closestPoint(mTrainWindow.get(instance), 
-					                                      mCodeVectors, mClusterList);
+		for (int epoch = 0; epoch < mNumEpochs.getValue(); epoch++) {
+			if (batch) {
+				batchEpoch(deltas, counts, partitionSize);
+				mCurrLearnRate -= mLearningDec.getValue();
+				continue;
+			}
+			
+			for (int instance = 0; instance < mTrainWindow.numInstances(); instance++) {
+				loadValues(mTrainWindow.get(instance), mSample);
+				winningNeuron = closestCodeVector(mSample);
+				off = winningNeuron * mNumAtts;
+				
+				// update the weights
+				for (int j = 0; j < mNumAtts; j++) {
+					double diff = mCurrLearnRate
+					               * (mSample[j] - mCodeVectors[off + j]);
 					
-					// update the weights
-					for (int j = 0; j < mCodeVectors.numAttributes(); j++) {
-						if (j != mCodeVectors.classIndex()) {
-							double diff = mCurrLearnRate
-							               * (mTrainWindow.get(instance).value(j) - 
-							                   mCodeVectors.get(winningNeuron).value(j));
-							
-							if (!Double.isNaN(diff)) {
-								updateCodeVector(winningNeuron, instance, j, diff);
-							}
-						}
+					if (!Double.isNaN(diff)) {
+						updateCodeVector(winningNeuron, 
+						                 mTrainWindow.get(instance), j, diff);
 					}
 				}
-				mCurrLearnRate -= mLearningDec.getValue();
-			} 
-		} catch (Exception e) {
-			System.err.println("Error: buildOffline.");
-			e.printStackTrace();
+			}
+			mCurrLearnRate -= mLearningDec.getValue();
+		} 
+	}
+	
+	/**
+	 * One epoch of the batch LVQ: computes the updates of each partition of
+	 * the window (in parallel if there are several threads) and then moves
+	 * each code vector by the mean of its updates, summed in the order of 
+	 * the partitions.
+	 * 
+	 * @param deltas Updates of the code vectors of each partition.
+	 * @param counts Instances won by each code vector in each partition.
+	 * @param partitionSize Number of instances of each partition.
+	 */
+	private void batchEpoch(double[][] deltas, int[][] counts, 
+	                        int partitionSize) {
+		double sum;
+		int total, off;
+		
+		if (numThreads() > 1 && deltas.length > 1) {
+			getPool().invoke(new BatchUpdates(deltas, counts, partitionSize, 
+			                                  0, deltas.length));
+		} else {
+			for (int p = 0; p < deltas.length; p++)
+				batchUpdates(deltas[p], counts[p], p * partitionSize, 
+				             Math.min((p + 1) * partitionSize, 
+				                      mTrainWindow.numInstances()));
+		}
+		
+		// Reduction
+		for (int i = 0; i < mNumCodeVectors; i++) {
+			total = 0;
+			for (int p = 0; p < counts.length; p++)
+				total += counts[p][i];
+			
+			if (total == 0)
+				continue;
+			
+			off = i * mNumAtts;
+			for (int j = 0; j < mNumAtts; j++) {
+				sum = 0;
+				for (int p = 0; p < deltas.length; p++)
+					sum += deltas[p][off + j];
+				
+				mCodeVectors[off + j] += sum / total;
+			}
 		}
 	}
+
+	/**
+	 * Computes the updates of the code vectors for some instances of the 
+	 * window, without modifying the code vectors.
+	 * 
+	 * @param deltas Updates of the code vectors (output).
+	 * @param counts Instances won by each code vector (output).
+	 * @param from First instance of the window.
+	 * @param to Last instance of the window (excluded).
+	 */
+	private void batchUpdates(double[] deltas, int[] counts, int from, int to) {
+		double[] values = new double[mNumAtts];
+		Instance inst;
+		int winningNeuron, off;
+		
+		Arrays.fill(deltas, 0);
+		Arrays.fill(counts, 0);
+		
+		for (int instance = from; instance < to; instance++) {
+			inst = mTrainWindow.get(instance);
+			loadValues(inst, values);
+			winningNeuron = closestCodeVector(values);
+			off = winningNeuron * mNumAtts;
+			counts[winningNeuron]++;
+			
+			for (int j = 0; j < mNumAtts; j++) {
+				double diff = mCurrLearnRate * (values[j] - mCodeVectors[off + j]);
+				
+				if (Double.isNaN(diff))
+					continue;
+				
+				if (mLabels[winningNeuron] == inst.classValue())
+					deltas[off + j] += diff;
+				else
+					deltas[off + j] -= diff;
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of threads for the batch offline learning.
+	 * 
+	 * @return Number of threads.
+	 */
+	private int numThreads() {
+		if (mNumThreads.getValue() == 0)
+			return Runtime.getRuntime().availableProcessors();
+		
+		return mNumThreads.getValue();
+	}
+
+	/**
+	 * Returns the pool of threads, created the first time it is needed or 
+	 * when the number of threads has changed.
+	 * 
+	 * @return Pool of threads.
+	 */
+	private ForkJoinPool getPool() {
+		if (mPool == null || mPool.getParallelism() != numThreads()) {
+			if (mPool != null)
+				mPool.shutdown();
+			
+			mPool = new ForkJoinPool(numThreads());
+		}
+		
+		return mPool;
+	}
 	
 	/**
 	 * Online training.
@@ -266,46 +485,86 @@ public class OLVQ extends AbstractClassifier {
 	 * @param inst New instance.
 	 */
 	private void onlineLearning (Instance inst) {
-		double dist, sumDist;
-		int winningNeuron;
+		// The ranges are those of the code vectors before the training
+		updateRanges();
+		loadValues(inst, mTarget);
 
-		// init euclidean distance
-		EuclideanDistance distance = new EuclideanDistance(mCodeVectors);
-		distance.setDontNormalize(true);
+		for (int epoch = 0; epoch < mOnlineEpochs; epoch++) {
+			for (int instance = 0; instance < mTrainWindow.numInstances(); instance++)
+				onlineUpdate(inst, mTrainWindow.get(instance));
+			
+			mCurrLearnRate -= mLearningDec.getValue();
+		}
+	}
 
-		try {
-			for (int epoch = 0; epoch < mOnlineEpochs; epoch++) {
-				for (int instance = 0; instance < mTrainWindow.numInstances(); instance++) {
-					winningNeuron = distance.closestPoint(mTrainWindow.get(instance), 
-					                                       mCodeVectors, mClusterList);
-
-					dist = sumDist = 0;
-					for (int i = 0; i < mCodeVectors.numInstances(); i++) {
-						if (i == winningNeuron)
-							dist = distance.distance(inst, mCodeVectors.instance(i));
-						else
-							sumDist += distance.distance(inst, mCodeVectors.instance(i));
-					}
-					
-					// update the weights
-					for (int j = 0; j < mCodeVectors.numAttributes(); j++) {
-						if (j != mCodeVectors.classIndex()) {
-							double diff = mCurrLearnRate
-							              * (mTrainWindow.get(instance).value(j) - 
-							                  mCodeVectors.get(winningNeuron).value(j))
-							                  * (dist / sumDist);
-							
-							if (!Double.isNaN(diff)) {
-								updateCodeVector(winningNeuron, instance, j, diff);
-							}
-						}
-					}
-				}
-				mCurrLearnRate -= mLearningDec.getValue();
+	/**
+	 * Streaming online training: the code vectors are updated with the new 
+	 * instance and with a fixed number of instances of the window chosen
+	 * at random, so its cost doesn't depend on the size of the window.
+	 * 
+	 * @param inst New instance.
+	 */
+	private void streamingLearning (Instance inst) {
+		// The ranges are those of the code vectors before the training
+		updateRanges();
+		loadValues(inst, mTarget);
+
+		onlineUpdate(inst, inst);
+		
+		for (int i = 0; i < mReplayBudget.getValue(); i++)
+			onlineUpdate(inst, mTrainWindow.get(
+			               mReplayRandom.nextInt(mTrainWindow.numInstances())));
+		
+		mCurrLearnRate -= mLearningDec.getValue();
+	}
+
+	/**
+	 * Moves the code vector nearest to an instance of the window, weighted
+	 * by the distance of the new instance to it relative to the 
+	 * others. The nearest code vector and the distances are computed in
+	 * the same pass over the code vectors.
+	 * 
+	 * @param inst New instance.
+	 * @param sample Instance of the window.
+	 */
+	private void onlineUpdate(Instance inst, Instance sample) {
+		double dist, sumDist, sqDist, minDist = Integer.MAX_VALUE;
+		int winningNeuron = 0, off;
+
+		loadValues(sample, mSample);
+		
+		for (int i = 0; i < mNumCodeVectors; i++) {
+			off = i * mNumAtts;
+			sqDist = squaredDistance(mSample, off);
+			
+			if (sqDist < minDist) {
+				minDist = sqDist;
+				winningNeuron = i;
+			}
+			
+			mDistances[i] = Math.sqrt(sample == inst ? sqDist : 
+			                                squaredDistance(mTarget, off));
+		}
+
+		dist = sumDist = 0;
+		for (int i = 0; i < mNumCodeVectors; i++) {
+			if (i == winningNeuron)
+				dist = mDistances[i];
+			else
+				sumDist += mDistances[i];
+		}
+		
+		// update the weights
+		off = winningNeuron * mNumAtts;
+		
+		for (int j = 0; j < mNumAtts; j++) {
+			double diff = mCurrLearnRate
+			              * (mSample[j] - mCodeVectors[off + j])
+			                  * (dist / sumDist);
+			
+			if (!Double.isNaN(diff)) {
+				updateCodeVector(winningNeuron, sample, j, diff);
 			}
-		} catch (Exception e) {
-			System.err.println("Error: onlineLearning.");
-			e.printStackTrace();
 		}
 	}
 
@@ -314,22 +573,216 @@ public class OLVQ extends AbstractClassifier {
 	 * 
 	 * @param winningNeuron Index of the code vector.
 	 * @param instance Instance that has triggered the update.
-	 * @param att Attribute to update.
+	 * @param att Attribute to update (of the code vectors).
 	 * @param diff Difference to add/subtract to the code vector.
 	 */
-	private void updateCodeVector(int winningNeuron, int instance, int att,
+	private void updateCodeVector(int winningNeuron, Instance instance, int att,
 	                               double diff) {
 		// add
-		if (mCodeVectors.get(winningNeuron).classValue() == 
-		      mTrainWindow.get(instance).classValue())
-			mCodeVectors.get(winningNeuron).setValue(att,
-			                  mCodeVectors.get(winningNeuron).value(att) 
-			                  + diff);
+		if (mLabels[winningNeuron] == instance.classValue())
+			mCodeVectors[winningNeuron * mNumAtts + att] += diff;
 		// subtract
 		else
-			mCodeVectors.get(winningNeuron).setValue(att,
-			                  mCodeVectors.get(winningNeuron).value(att) 
-			                  - diff);
+			mCodeVectors[winningNeuron * mNumAtts + att] -= diff;
+	}
+
+	/**
+	 * Returns the index of the code vector nearest to some values: the 
+	 * first one at the minimum distance.
+	 * 
+	 * @param values Values of the attributes of the code vectors.
+	 * @return Index of the code vector.
+	 */
+	private int closestCodeVector(double[] values) {
+		double sqDist, minDist = Integer.MAX_VALUE;
+		int closest = 0;
+		
+		for (int i = 0, off = 0; i < mNumCodeVectors; i++, off += mNumAtts) {
+			sqDist = squaredDistance(values, off);
+			
+			if (sqDist < minDist) {
+				minDist = sqDist;
+				closest = i;
+			}
+		}
+		
+		return closest;
+	}
+
+	/**
+	 * Returns the squared euclidean distance (not normalized) between some
+	 * values and a code vector.
+	 * 
+	 * @param values Values of the attributes of the code vectors.
+	 * @param off Offset of the code vector.
+	 * @return Squared distance.
+	 */
+	private double squaredDistance(double[] values, int off) {
+		double dist = 0, diff;
+		
+		for (int j = 0; j < mNumAtts; j++) {
+			if (mNominal[j] || Double.isNaN(values[j]) || 
+			      Double.isNaN(mCodeVectors[off + j]))
+				diff = difference(j, values[j], mCodeVectors[off + j]);
+			else
+				diff = values[j] - mCodeVectors[off + j];
+			
+			dist += diff * diff;
+		}
+		
+		return dist;
+	}
+
+	/**
+	 * Difference between two values of an attribute, not normalized, as in
+	 * MOA's EuclideanDistance. Missing values are compared with the ranges
+	 * of the code vectors.
+	 * 
+	 * @param att Attribute of the code vectors.
+	 * @param val1 First value.
+	 * @param val2 Second value.
+	 * @return Difference.
+	 */
+	private double difference(int att, double val1, double val2) {
+		double val;
+		
+		if (mNominal[att])
+			return Double.isNaN(val1) || Double.isNaN(val2) || 
+			         (int) val1 != (int) val2 ? 1 : 0;
+		
+		if (!Double.isNaN(val1) && !Double.isNaN(val2))
+			return val1 - val2;
+		
+		if (Double.isNaN(val1) && Double.isNaN(val2))
+			return mMax[att] - mMin[att];
+		
+		val = Double.isNaN(val2) ? val1 : val2;
+		
+		if (mMax[att] - val > val - mMin[att])
+			return mMax[att] - val;
+		
+		return val - mMin[att];
+	}
+
+	/**
+	 * Difference between two values of an attribute, normalized with the 
+	 * ranges of the code vectors, as in MOA's EuclideanDistance.
+	 * 
+	 * @param att Attribute of the code vectors.
+	 * @param val1 First value.
+	 * @param val2 Second value.
+	 * @return Difference.
+	 */
+	private double normDifference(int att, double val1, double val2) {
+		double val;
+		
+		if (mNominal[att])
+			return difference(att, val1, val2);
+		
+		if (Double.isNaN(val1) && Double.isNaN(val2))
+			return 1;
+		
+		if (!Double.isNaN(val1) && !Double.isNaN(val2))
+			return norm(att, val1) - norm(att, val2);
+		
+		val = norm(att, Double.isNaN(val2) ? val1 : val2);
+		
+		return val < 0.5 ? 1 - val : val;
+	}
+
+	/**
+	 * Normalizes a value with the ranges of the code vectors.
+	 * 
+	 * @param att Attribute of the code vectors.
+	 * @param val Value.
+	 * @return Normalized value.
+	 */
+	private double norm(int att, double val) {
+		if (Double.isNaN(mMin[att]) || mMax[att] == mMin[att])
+			return 0;
+		
+		return (val - mMin[att]) / (mMax[att] - mMin[att]);
+	}
+
+	/**
+	 * Computes the ranges of the code vectors. Missing values are ignored.
+	 */
+	private void updateRanges() {
+		double val;
+		
+		Arrays.fill(mMin, Double.POSITIVE_INFINITY);
+		Arrays.fill(mMax, Double.NEGATIVE_INFINITY);
+		
+		for (int i = 0, off = 0; i < mNumCodeVectors; i++, off += mNumAtts) {
+			for (int j = 0; j < mNumAtts; j++) {
+				val = mCodeVectors[off + j];
+				
+				if (Double.isNaN(val))
+					continue;
+				
+				if (val < mMin[j])
+					mMin[j] = val;
+				
+				if (val > mMax[j])
+					mMax[j] = val;
+			}
+		}
+	}
+
+	/**
+	 * Copies the values of the attributes of the code vectors of an 
+	 * instance.
+	 * 
+	 * @param inst Instance.
+	 * @param values Array to store the values.
+	 */
+	private void loadValues(Instance inst, double[] values) {
+		for (int j = 0; j < mNumAtts; j++)
+			values[j] = inst.value(mAttIndex[j]);
+	}
+
+	/**
+	 * Creates the empty code vectors for a dataset.
+	 * 
+	 * @param dataset Dataset.
+	 */
+	private void initCodeVectors(Instances dataset) {
+		mNumAtts = dataset.numAttributes() - 1;
+		mAttIndex = new int[mNumAtts];
+		mNominal = new boolean[mNumAtts];
+		
+		for (int i = 0, j = 0; i < dataset.numAttributes(); i++) {
+			if (i != dataset.classIndex()) {
+				mAttIndex[j] = i;
+				mNominal[j++] = dataset.attribute(i).isNominal();
+			}
+		}
+		
+		mCodeVectors = new double[mNumAtts * 16];
+		mLabels = new int[16];
+		mNumCodeVectors = 0;
+		mMin = new double[mNumAtts];
+		mMax = new double[mNumAtts];
+		mSample = new double[mNumAtts];
+		mTarget = new double[mNumAtts];
+	}
+
+	/**
+	 * Adds a code vector.
+	 * 
+	 * @param inst Instance with the values of the code vector.
+	 * @param label Class of the code vector.
+	 */
+	private void addCodeVector(Instance inst, int label) {
+		if (mNumCodeVectors == mLabels.length) {
+			mCodeVectors = Arrays.copyOf(mCodeVectors, mCodeVectors.length * 2);
+			mLabels = Arrays.copyOf(mLabels, mLabels.length * 2);
+		}
+		
+		for (int j = 0; j < mNumAtts; j++)
+			mCodeVectors[mNumCodeVectors * mNumAtts + j] = inst.value(mAttIndex[j]);
+		
+		mLabels[mNumCodeVectors++] = label;
 	}
 
 	@Override
@@ -343,34 +796,88 @@ public class OLVQ extends AbstractClassifier {
 
 	/**
 	 * This function initializes the clusters' weights.
-	 * 
-	 * @return The initialized clusters
 	 */
-	protected Instances initClusters() {
-		Instances weights = new Instances(mTrainWindow, mNumCodeVect.getValue());
+	protected void initClusters() {
 		Random random = new Random(randomSeed);
-		double[] instValues;
 		int numC = mTrainWindow.numClasses();
 
+		mCodeVectors = new double[mNumCodeVect.getValue() * mNumAtts];
+		mLabels = new int[mNumCodeVect.getValue()];
+		mNumCodeVectors = mNumCodeVect.getValue();
+		mDistances = new double[mNumCodeVectors];
+		
 		for (int cl = 0, i = 0; i < mNumCodeVect.getValue(); i++, cl++) {
-			instValues = new double[mTrainWindow.numAttributes()];
-			
 			// Class for the codevector.
 			if (cl == numC)
 				cl = 0;
 			
-			for (int j = 0; j < mTrainWindow.numAttributes(); j++)
-				if (j == mTrainWindow.classIndex())
-					instValues[j] = cl;
-				else
-					instValues[j] = random.nextGaussian();
+			mLabels[i] = cl;
 			
-			Instance inst = new DenseInstance(1, instValues);
-			inst.setDataset(weights);
-			weights.add(inst);
+			for (int j = 0, k = 0; j < mTrainWindow.numAttributes(); j++)
+				if (j != mTrainWindow.classIndex())
+					mCodeVectors[i * mNumAtts + k++] = random.nextGaussian();
+		}
+	}
+
+	/**
+	 * Task that computes the updates of a range of partitions of the window,
+	 * splitting it until each task has only one partition.
+	 */
+	private class BatchUpdates extends RecursiveAction {
+
+		private static final long serialVersionUID = -3342769201482265816L;
+
+		/**
+		 * Updates of the code vectors of each partition.
+		 */
+		private double[][] mDeltas;
+
+		/**
+		 * Instances won by each code vector in each partition.
+		 */
+		private int[][] mCounts;
+
+		/**
+		 * Number of instances of each partition.
+		 */
+		private int mPartitionSize;
+
+		/**
+		 * First partition of the range.
+		 */
+		private int mFrom;
+
+		/**
+		 * Last partition of the range (excluded).
+		 */
+		private int mTo;
+
+		public BatchUpdates(double[][] deltas, int[][] counts, int partitionSize,
+		                    int from, int to) {
+			mDeltas = deltas;
+			mCounts = counts;
+			mPartitionSize = partitionSize;
+			mFrom = from;
+			mTo = to;
 		}
 
-		return weights;
+		@Override
+		protected void compute() {
+			int mid;
+			
+			if (mTo - mFrom > 1) {
+				mid = (mFrom + mTo) >>> 1;
+				invokeAll(new BatchUpdates(mDeltas, mCounts, mPartitionSize, 
+				                           mFrom, mid),
+				          new BatchUpdates(mDeltas, mCounts, mPartitionSize, 
+				                           mid, mTo));
+				return;
+			}
+			
+			batchUpdates(mDeltas[mFrom], mCounts[mFrom], mFrom * mPartitionSize,
+			             Math.min((mFrom + 1) * mPartitionSize, 
+			                      mTrainWindow.numInstances()));
+		}
 	}
 
 	public String getPurposeString() {
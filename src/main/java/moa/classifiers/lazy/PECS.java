@@ -18,19 +18,28 @@
  */
 package moa.classifiers.lazy;
 
+import java.io.Serializable;
 import java.util.ArrayList;
-import java.util.Hashtable;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 
+import com.github.javacliparser.FlagOption;
 import com.github.javacliparser.FloatOption;
 import com.github.javacliparser.IntOption;
 import com.github.javacliparser.MultiChoiceOption;
 import com.yahoo.labs.samoa.instances.Instance;
 import com.yahoo.labs.samoa.instances.Instances;
 
-import moa.classifiers.lazy.neighboursearch.KDTree;
-import moa.classifiers.lazy.neighboursearch.LinearNNSearch;
+import moa.classifiers.lazy.neighboursearch.EuclideanDistance;
+import moa.classifiers.lazy.neighboursearch.FrozenDistance;
+import moa.classifiers.lazy.neighboursearch.InstanceSlotMap;
 import moa.classifiers.lazy.neighboursearch.NearestNeighbourSearch;
+import moa.classifiers.lazy.neighboursearch.NormalizableDistance;
+import utils.indexstructure.Distance;
+import utils.indexstructure.MTree;
  
 /**
  * Implementation of Prediction Error Context Switching (PECS). Presented in:
@@ -38,6 +47,13 @@ import moa.classifiers.lazy.neighboursearch.NearestNeighbourSearch;
  * learning using prediction error context switching. 
  * Artificial Intelligence Review, 11(1-5), 133-155.
  * <p>
+ * The instances of L u U within the radius of each query can be looked for
+ * in a metric tree (-e) instead of scanning L u U. It pays off when the
+ * radius is small compared with the spread of L u U, that is, with a low 
+ * beta (e.g. -b 0.005 is about 1.5x faster than a full scan). With the 
+ * default beta the radius covers a large part of L u U, and the tree costs
+ * about as much as the scan.
+ * <p>
  * Valid options are:
  * <p>
  * -t inactivation threshold <br>
@@ -45,9 +61,11 @@ import moa.classifiers.lazy.neighboursearch.NearestNeighbourSearch;
  * -b beta value for compute the number of neighbors <br>
  * -r shift register length <br>
  * -c confidence value for the confidence interval <br>
+ * -u maximum number of inactive instances stored <br>
+ * -e look for the instances within the radius in a metric tree <br>
  * 
  * @author Álvar Arnaiz-González
- * @version 20160609
+ * @version 20160701
  */
 public class PECS extends WFkNN {
 
@@ -85,6 +103,21 @@ public class PECS extends WFkNN {
 	        new String[]{"99%", "95%", "90%", "80%"},
 	        new String[]{"2.575829", "1.959964", "1.644854", "1.281552"}, 3);
 
+	/**
+	 * Maximum number of instances in U. When it is exceeded the instance
+	 * that has been out of the radius of the queries for longer is evicted.
+	 */
+	public IntOption mMaxInactive = new IntOption("maxInactive", 'u',
+	        "Maximum number of inactive instances (U), 0 for unlimited",
+	        0, 0, Integer.MAX_VALUE);
+
+	/**
+	 * If the instances of L u U within the radius are looked for in a 
+	 * metric tree instead of scanning L u U.
+	 */
+	public FlagOption mRadiusTree = new FlagOption("radiusTree", 'e',
+	        "Look for the instances within the radius in a metric tree (pays off with a low beta)");
+
 	public static final double PERC_99 = 2.575829;
 	
 	public static final double PERC_95 = 1.959964;
@@ -94,114 +127,172 @@ public class PECS extends WFkNN {
 	public static final double PERC_80 = 1.281552;
 
 	/**
-	 * Hash of the instances in L.
+	 * Maximum length of the shift register for which the boundaries are
+	 * precomputed.
 	 */
-	private Hashtable<String, Boolean> mHashInstancesL;
+	private static final int MAX_TABLE_LENGTH = 256;
 
 	/**
-	 * Shift register for each instance.
+	 * Slot of each different instance of L u U. Instances with the same
+	 * values share the slot, and so the shift register.
 	 */
-	private Hashtable<String, List<Boolean>> mShiftRegisters;
+	private InstanceSlotMap mSlots;
 
 	/**
-	 * All instances: L u U. 
+	 * Whether the instance of each slot is in L.
 	 */
-	private Instances mInstancesLU;
-	
+	private boolean[] mActive;
+
+	/**
+	 * Shift register of each slot: mWords consecutive words per slot. The
+	 * bit 0 of the first word is the last agreement stored.
+	 */
+	private long[] mRegisters;
+
+	/**
+	 * Number of agreements stored in the shift register of each slot.
+	 */
+	private int[] mRegLengths;
+
+	/**
+	 * Number of entries of L u U of each slot.
+	 */
+	private int[] mSlotEntries;
+
+	/**
+	 * Number of words of each shift register.
+	 */
+	private int mWords;
+
 	/**
-	 * Search over window.
+	 * Mask of the valid bits of the last word of a shift register.
 	 */
-	private NearestNeighbourSearch mWindowSearch;
+	private long mLastWordMask;
+
+	/**
+	 * Lower boundary for each length and number of successes. Null if the
+	 * register is too long.
+	 */
+	private double[][] mLowerBounds;
+
+	/**
+	 * Upper boundary for each length and number of successes. Null if the
+	 * register is too long.
+	 */
+	private double[][] mUpperBounds;
+
+	/**
+	 * All instances: L u U, in order of arrival.
+	 */
+	private LinkedHashSet<LUEntry> mInstancesLU;
+
+	/**
+	 * Instances of U, the least recently found in a radius first. Only kept
+	 * when the number of inactive instances is bounded.
+	 */
+	private LinkedHashSet<LUEntry> mInactive;
 	
 	/**
-	 * Search over all instances: L u U.
+	 * Distance over all instances: L u U. Its ranges grow with L u U (the
+	 * evicted instances are not removed from them).
+	 */
+	private EuclideanDistance mLUDistance;
+
+	/**
+	 * Metric tree over L u U for the radius queries.
+	 */
+	private MTree<LUEntry> mLUTree;
+
+	/**
+	 * Distance of the tree: the distance over L u U with the ranges frozen
+	 * when the tree was built.
+	 */
+	private FrozenDistance mTreeDistance;
+
+	/**
+	 * Arrival number of the next instance of L u U.
 	 */
-	private NearestNeighbourSearch mLUSearch;
+	private long mArrivals;
+
+	/**
+	 * True if some instance of L u U has missing values. The radius query
+	 * is then computed over all the instances.
+	 */
+	private boolean mLUHasMissing;
 
 	@Override
 	public void trainOnInstanceImpl(Instance inst) {
-		List<Instance> nn = null;
-		List<Boolean> shiftReg;
+		List<LUEntry> nn = null;
+		LUEntry entry;
 		double[] distNN;
-		double x;
-		int k;
+		int k, slot, x, n;
 
 		if (mWindow == null)
 			mWindow = new Instances(inst.dataset());
 
 		if (mInstancesLU == null)
-			mInstancesLU = new Instances(inst.dataset());
+			mInstancesLU = new LinkedHashSet<>();
 
-		if (mWindowSearch == null) {
-			if (this.nearestNeighbourSearchOption.getChosenIndex()== 0)
-				mWindowSearch = new LinearNNSearch(mWindow);
-			else
-				mWindowSearch = new KDTree(mWindow);
-		}
-		
-		if (mLUSearch == null) {
-			if (this.nearestNeighbourSearchOption.getChosenIndex()== 0) {
-				mLUSearch = new LinearNNSearch(mWindow);  
-			} else {
-				mLUSearch = new KDTree(mWindow);
-			}
+		if (mInactive == null)
+			mInactive = new LinkedHashSet<>();
+
+		// The ranges are initialized with the first instance: updating empty
+		// ranges doesn't set the maximum values.
+		if (mLUDistance == null) {
+			mLUDistance = new EuclideanDistance(new Instances(inst.dataset(), 1));
+			mLUDistance.getInstances().add(inst);
 		}
 
-		if (mHashInstancesL == null)
-			mHashInstancesL = new Hashtable<>();
-			
-		if (mShiftRegisters == null)
-			mShiftRegisters = new Hashtable<>();
+		if (mSlots == null)
+			initSlots();
 
 		try {
 			k = (int)Math.ceil(mBeta.getValue() * mWindow.numInstances());
-			mWindowSearch.kNearestNeighbours(inst, k);
-			distNN = mWindowSearch.getDistances();
+			getSearch().kNearestNeighbours(inst, k);
+			distNN = mSearch.getDistances();
 			
 			// Get the instances in L u U into the radius
 			if (distNN.length > 0)
-				nn = getNNWithinRadius(inst, distNN[distNN.length - 1]);
+				nn = getEntriesWithinRadius(inst, distNN[distNN.length - 1]);
 	
 			// Add inst to L
+			entry = new LUEntry(inst.copy(), mArrivals++);
 			mWindow.add(inst);
-			mInstancesLU.add(inst);
-			mHashInstancesL.put(inst.toString(), true);
-			mWindowSearch.update(inst);
-			mLUSearch.update(inst);
+			mInstancesLU.add(entry);
+			entry.mSlot = addSlotEntry(entry.mInst);
+			mActive[entry.mSlot] = true;
+			addToSearch(inst);
+			mLUDistance.update(inst);
+			addToLUTree(entry);
 			
 			if (distNN.length > 0) {
 				// for each neighbor 
 				for (int i = 0; i < nn.size(); i++) {
-					// Compute SRei
-					shiftReg = mShiftRegisters.get(nn.get(i).toString());
-					
-					if (shiftReg == null)
-						shiftReg = new ArrayList<Boolean>(mRegisterLenght.getValue());
+					entry = nn.get(i);
+					slot = entry.mSlot;
 					
 					// Store SRei
-					shiftReg.add(agree(inst, nn.get(i)));
+					pushAgreement(slot, agree(inst, entry.mInst));
 					
-					if (shiftReg.size() > mRegisterLenght.getValue())
-						shiftReg.remove(0);
+					x = successes(slot);
+					n = mRegLengths[slot];
 					
-					mShiftRegisters.put(nn.get(i).toString(), shiftReg);
-					
-					x = successes(shiftReg);
-					
-					if (calcBound (true, x, shiftReg.size()) > 
-					     mAgreementAcceptance.getValue() &&
-					      !mHashInstancesL.get(nn.get(i).toString())) {
-						mHashInstancesL.put(nn.get(i).toString(), true);
-						mWindow.add(nn.get(i));
+					if (lowerBound(x, n) > mAgreementAcceptance.getValue() &&
+					      !mActive[slot]) {
+						mActive[slot] = true;
+						mWindow.add(entry.mInst);
+						addToSearch(entry.mInst);
 					}
 					
-					if (calcBound (false, x, shiftReg.size()) < 
-					     mInactivationThreshold.getValue() &&
-					      mHashInstancesL.get(nn.get(i).toString())) {
-						mHashInstancesL.put(nn.get(i).toString(), false);
-						removeFromWindow(nn.get(i));
+					if (upperBound(x, n) < mInactivationThreshold.getValue() &&
+					      mActive[slot]) {
+						mActive[slot] = false;
+						removeFromWindow(entry.mInst);
 					}
 				}
+				
+				if (mMaxInactive.getValue() > 0)
+					updateInactive(nn);
 			}
 
 		} catch (Exception e) {
@@ -212,7 +303,7 @@ public class PECS extends WFkNN {
 
 	/**
 	 * Computes and returns the instances which the distance between them and
-	 * inst is lower than radius. 
+	 * inst is lower than radius. They are returned in order of arrival.
 	 * 
 	 * @param inst center of the hypersphere.
 	 * @param radius radius of the hypersphere.
@@ -221,25 +312,342 @@ public class PECS extends WFkNN {
 	public ArrayList<Instance> getNNWithinRadius (Instance inst, double radius) {
 		ArrayList<Instance> nn = new ArrayList<>();
 		
-		for (int i = 0; i < mInstancesLU.numInstances(); i++)
-			if (mLUSearch.getDistanceFunction().
-			       distance(mInstancesLU.instance(i), inst) <= radius)
-				nn.add(mInstancesLU.instance(i));
+		for (LUEntry entry : getEntriesWithinRadius(inst, radius))
+			nn.add(entry.mInst);
 		
 		return nn;
 	}
 
+	/**
+	 * Computes and returns the entries of L u U which the distance between 
+	 * them and inst is lower than radius. They are returned in order of 
+	 * arrival.
+	 * 
+	 * @param inst center of the hypersphere.
+	 * @param radius radius of the hypersphere.
+	 * @return Those entries into the hypersphere.
+	 */
+	private List<LUEntry> getEntriesWithinRadius (Instance inst, double radius) {
+		List<LUEntry> nn = new ArrayList<>();
+		List<LUEntry> candidates;
+		double scale;
+		
+		if (mInstancesLU == null)
+			return nn;
+		
+		scale = !mRadiusTree.isSet() || mLUHasMissing || hasMissing(inst) ? 
+		          Double.POSITIVE_INFINITY : treeScale();
+		
+		// No tree, or it can't bound the distance: check all the instances.
+		if (Double.isInfinite(scale)) {
+			for (LUEntry entry : mInstancesLU)
+				if (mLUDistance.distance(entry.mInst, inst) <= radius)
+					nn.add(entry);
+			
+			return nn;
+		}
+		
+		// Ranges have grown too much since the tree was built.
+		if (scale > 2) {
+			buildLUTree();
+			scale = 1;
+		}
+		
+		if (mLUTree == null)
+			return nn;
+		
+		// A small slack protects the bound from rounding errors.
+		candidates = mLUTree.rangeQuery(new LUEntry(inst, -1), 
+		                                 radius * scale * (1 + 1e-9) + 1e-12);
+		Collections.sort(candidates, new Comparator<LUEntry>() {
+			public int compare(LUEntry e1, LUEntry e2) {
+				return Long.compare(e1.mArrival, e2.mArrival);
+			}
+		});
+		
+		for (LUEntry entry : candidates)
+			if (mLUDistance.distance(entry.mInst, inst) <= radius)
+				nn.add(entry);
+		
+		return nn;
+	}
+
+	/**
+	 * Updates U with the entries found in the radius of the last query: the
+	 * inactive ones become the most recently used. Then, the least recently
+	 * used entries are evicted until the budget is fulfilled.
+	 * 
+	 * @param nn Entries found in the radius.
+	 */
+	private void updateInactive(List<LUEntry> nn) {
+		Iterator<LUEntry> it;
+		LUEntry entry;
+		
+		for (LUEntry e : nn) {
+			mInactive.remove(e);
+			
+			if (!mActive[e.mSlot])
+				mInactive.add(e);
+		}
+		
+		it = mInactive.iterator();
+		
+		while (mInactive.size() > mMaxInactive.getValue()) {
+			entry = it.next();
+			it.remove();
+			
+			// An arrival with the same values has reactivated it.
+			if (mActive[entry.mSlot])
+				continue;
+			
+			mInstancesLU.remove(entry);
+			removeSlotEntry(entry.mSlot);
+			
+			if (mLUTree != null)
+				mLUTree.remove(entry);
+		}
+	}
+
+	/**
+	 * Creates the slots and the shift registers, and precomputes the 
+	 * boundaries.
+	 */
+	private void initSlots() {
+		int length = mRegisterLenght.getValue();
+		
+		mSlots = new InstanceSlotMap();
+		mWords = (length + 63) / 64;
+		mLastWordMask = length % 64 == 0 ? -1L : (1L << (length % 64)) - 1;
+		mActive = new boolean[16];
+		mRegisters = new long[16 * mWords];
+		mRegLengths = new int[16];
+		mSlotEntries = new int[16];
+		
+		if (length <= MAX_TABLE_LENGTH) {
+			mLowerBounds = new double[length + 1][];
+			mUpperBounds = new double[length + 1][];
+			
+			for (int n = 1; n <= length; n++) {
+				mLowerBounds[n] = new double[n + 1];
+				mUpperBounds[n] = new double[n + 1];
+				
+				for (int x = 0; x <= n; x++) {
+					mLowerBounds[n][x] = calcBound(true, x, n);
+					mUpperBounds[n][x] = calcBound(false, x, n);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Adds an entry of L u U to the slot of its instance. If it is the 
+	 * first entry of the slot, its shift register is empty.
+	 * 
+	 * @param inst Instance of the entry.
+	 * @return Slot of the instance.
+	 */
+	private int addSlotEntry(Instance inst) {
+		int slot = mSlots.find(inst);
+		
+		if (slot == -1) {
+			slot = mSlots.add(inst);
+			
+			if (slot == mActive.length)
+				growSlots();
+			
+			clearRegister(slot);
+			mActive[slot] = false;
+		}
+		
+		mSlotEntries[slot]++;
+		
+		return slot;
+	}
+
+	/**
+	 * Removes an entry of L u U from its slot. The shift register is 
+	 * dropped and the slot is freed if there isn't any other entry.
+	 * 
+	 * @param slot Slot of the entry.
+	 */
+	private void removeSlotEntry(int slot) {
+		if (--mSlotEntries[slot] == 0) {
+			clearRegister(slot);
+			mSlots.remove(slot);
+		}
+	}
+
+	/**
+	 * Doubles the arrays of the slots.
+	 */
+	private void growSlots() {
+		boolean[] active = new boolean[mActive.length * 2];
+		long[] registers = new long[mRegisters.length * 2];
+		int[] regLengths = new int[mRegLengths.length * 2];
+		int[] slotEntries = new int[mSlotEntries.length * 2];
+		
+		System.arraycopy(mActive, 0, active, 0, mActive.length);
+		System.arraycopy(mRegisters, 0, registers, 0, mRegisters.length);
+		System.arraycopy(mRegLengths, 0, regLengths, 0, mRegLengths.length);
+		System.arraycopy(mSlotEntries, 0, slotEntries, 0, mSlotEntries.length);
+		
+		mActive = active;
+		mRegisters = registers;
+		mRegLengths = regLengths;
+		mSlotEntries = slotEntries;
+	}
+
+	/**
+	 * Empties the shift register of a slot.
+	 * 
+	 * @param slot Slot.
+	 */
+	private void clearRegister(int slot) {
+		for (int w = 0; w < mWords; w++)
+			mRegisters[slot * mWords + w] = 0;
+		
+		mRegLengths[slot] = 0;
+	}
+
+	/**
+	 * Stores an agreement in the shift register of a slot. The oldest one 
+	 * is discarded if the register is full.
+	 * 
+	 * @param slot Slot.
+	 * @param agreement Agreement to store.
+	 */
+	private void pushAgreement(int slot, boolean agreement) {
+		int first = slot * mWords;
+		
+		for (int w = first + mWords - 1; w > first; w--)
+			mRegisters[w] = (mRegisters[w] << 1) | (mRegisters[w - 1] >>> 63);
+		
+		mRegisters[first] <<= 1;
+		
+		if (agreement)
+			mRegisters[first] |= 1;
+		
+		mRegisters[first + mWords - 1] &= mLastWordMask;
+		
+		if (mRegLengths[slot] < mRegisterLenght.getValue())
+			mRegLengths[slot]++;
+	}
+
+	/**
+	 * Returns the factor s that bounds the distance of the tree with the 
+	 * current distance: tree distance <= s * current distance. Since the 
+	 * ranges only grow, the factor is the maximum ratio between the current 
+	 * and the frozen width of each numeric attribute.
+	 * 
+	 * @return Factor, infinite if the tree distance can't be bounded and
+	 *         greater than 2 if the tree should be rebuilt.
+	 */
+	private double treeScale() {
+		double[][] ranges, treeRanges;
+		double width, treeWidth, scale = 1;
+		
+		Instances header = mLUDistance.getInstances();
+		
+		if (mTreeDistance == null)
+			return mInstancesLU.size() > 0 ? Double.MAX_VALUE : 1;
+		
+		try {
+			ranges = mLUDistance.getRanges();
+			treeRanges = mTreeDistance.getRanges();
+		} catch (Exception e) {
+			return Double.POSITIVE_INFINITY;
+		}
+		
+		for (int i = 0; i < header.numAttributes(); i++) {
+			if (i == header.classIndex() || header.attribute(i).isNominal())
+				continue;
+			
+			width = ranges[i][NormalizableDistance.R_WIDTH];
+			treeWidth = treeRanges[i][NormalizableDistance.R_WIDTH];
+			
+			if (Double.isNaN(width) || width == 0) {
+				if (!Double.isNaN(treeWidth) && treeWidth != 0)
+					return Double.POSITIVE_INFINITY;
+			} else if (Double.isNaN(treeWidth) || treeWidth == 0) {
+				scale = Double.MAX_VALUE;
+			} else {
+				scale = Math.max(scale, width / treeWidth);
+			}
+		}
+		
+		return scale;
+	}
+
+	/**
+	 * Builds the metric tree over L u U, freezing the current ranges.
+	 */
+	private void buildLUTree() {
+		try {
+			mTreeDistance = new FrozenDistance(mLUDistance.getInstances(),
+			                                   mLUDistance.getRanges());
+		} catch (Exception e) {
+			System.err.println("Error: ranges of L u U not available.");
+			e.printStackTrace();
+			return;
+		}
+		
+		mLUTree = new MTree<LUEntry>(new Distance<LUEntry>() {
+			private static final long serialVersionUID = 1L;
+			
+			public double distance(LUEntry e1, LUEntry e2) {
+				return mTreeDistance.distance(e1.mInst, e2.mInst);
+			}
+		}, 6, 15);
+		
+		for (LUEntry entry : mInstancesLU)
+			mLUTree.add(entry);
+	}
+
+	/**
+	 * Adds an entry of L u U to the metric tree.
+	 * 
+	 * @param entry Entry of L u U.
+	 */
+	private void addToLUTree(LUEntry entry) {
+		// The tree can't hold missing values, and it won't be queried again.
+		if (hasMissing(entry.mInst)) {
+			mLUHasMissing = true;
+			mLUTree = null;
+			mTreeDistance = null;
+		}
+		
+		if (mLUTree != null)
+			mLUTree.add(entry);
+	}
+
+	/**
+	 * Checks if an instance has missing values (class excluded).
+	 * 
+	 * @param inst Instance.
+	 * @return True if some value is missing.
+	 */
+	private boolean hasMissing(Instance inst) {
+		for (int i = 0; i < inst.numAttributes(); i++)
+			if (i != inst.classIndex() && inst.isMissing(i))
+				return true;
+		
+		return false;
+	}
+
 	/**
 	 * Remove the instance from the window.
 	 * 
 	 * @param inst instance to remove from the window.
-	 * @throws Exception if an exception in search occurs.
+	 * @throws Exception if the search could not be updated.
 	 */
 	private void removeFromWindow(Instance inst) throws Exception {
+		Instance stored;
+		
 		for (int i = 0; i < mWindow.numInstances(); i++) {
 			if (LWF.compare(inst, mWindow.instance(i)) == 0) {
+				stored = mWindow.instance(i);
 				mWindow.delete(i);
-				mWindowSearch.setInstances(mWindow);
+				removeFromSearch(stored);
 				return;
 			}
 		}
@@ -260,21 +668,49 @@ public class PECS extends WFkNN {
 	}
 	
 	/**
-	 * Computes the number of trues that are present in the register.
+	 * Computes the number of agreements that are present in the register of
+	 * a slot.
 	 * 
-	 * @param shiftReg Register.
-	 * @return Number of trues in the register.
+	 * @param slot Slot.
+	 * @return Number of agreements in the register.
 	 */
-	private double successes (List<Boolean> shiftReg) {
+	private int successes (int slot) {
 		int num = 0;
 		
-		for (boolean b : shiftReg)
-			if (b)
-				num++;
+		for (int w = slot * mWords; w < (slot + 1) * mWords; w++)
+			num += Long.bitCount(mRegisters[w]);
 		
 		return num;
 	}
 
+	/**
+	 * Returns the lower boundary of a register.
+	 * 
+	 * @param x Number of successes.
+	 * @param n Length of the register.
+	 * @return Lower boundary.
+	 */
+	private double lowerBound (int x, int n) {
+		if (mLowerBounds != null)
+			return mLowerBounds[n][x];
+		
+		return calcBound(true, x, n);
+	}
+
+	/**
+	 * Returns the upper boundary of a register.
+	 * 
+	 * @param x Number of successes.
+	 * @param n Length of the register.
+	 * @return Upper boundary.
+	 */
+	private double upperBound (int x, int n) {
+		if (mUpperBounds != null)
+			return mUpperBounds[n][x];
+		
+		return calcBound(false, x, n);
+	}
+
 	/**
 	 * Returns the upper/lower boundary.
 	 * 
@@ -314,33 +750,50 @@ public class PECS extends WFkNN {
 
 	@Override
 	public double[] getVotesForInstance(Instance inst) {
-		Instances neighbours;
-		double v[] = new double[mNumClasses];
-		
 		try {
-			if (mWindow.numInstances() > 0) {
-				neighbours = mWindowSearch.kNearestNeighbours(inst,Math.min(kOption.getValue(),
-						                                        mWindow.numInstances()));
-				
-				for(int i = 0; i < neighbours.numInstances(); i++)
-					v[(int)neighbours.instance(i).classValue()]++;
-			}
+			return getVotesForInstance(inst, 
+			         mWindow.numInstances() > 0 ? getSearch() : null);
 		} catch(Exception e) {
 			System.err.println("Error: kNN search failed.");
 			e.printStackTrace();
 			return new double[inst.numClasses()];
 		}
+	}
+
+	@Override
+	protected double[] getVotesForInstance(Instance inst, 
+	                                        NearestNeighbourSearch search) throws Exception {
+		Instances neighbours;
+		double v[] = new double[mNumClasses];
+		
+		if (mWindow.numInstances() > 0) {
+			neighbours = search.kNearestNeighbours(inst,Math.min(kOption.getValue(),
+					                                        mWindow.numInstances()));
+			
+			for(int i = 0; i < neighbours.numInstances(); i++)
+				v[(int)neighbours.instance(i).classValue()]++;
+		}
+		
 		return v;
 	}
 	
 	@Override
 	public void resetLearningImpl() {
 		super.resetLearningImpl();
-		mWindowSearch = null;
 		mInstancesLU = null;
-		mLUSearch = null;
-		mHashInstancesL = null;
-		mShiftRegisters = null;
+		mInactive = null;
+		mArrivals = 0;
+		mLUDistance = null;
+		mLUTree = null;
+		mTreeDistance = null;
+		mLUHasMissing = false;
+		mSlots = null;
+		mActive = null;
+		mRegisters = null;
+		mRegLengths = null;
+		mSlotEntries = null;
+		mLowerBounds = null;
+		mUpperBounds = null;
 	}
 
 	public String getPurposeString() {
@@ -348,4 +801,31 @@ public class PECS extends WFkNN {
 		return "Prediction Error Context Switching (PECS).";
 	}
 	
+	/**
+	 * Instance of L u U stored in the metric tree.
+	 */
+	private static class LUEntry implements Serializable {
+		
+		private static final long serialVersionUID = -1842787839340524436L;
+
+		/**
+		 * Instance.
+		 */
+		private Instance mInst;
+		
+		/**
+		 * Order of arrival to L u U.
+		 */
+		private long mArrival;
+		
+		/**
+		 * Slot of the instance: its state in L and its shift register.
+		 */
+		private int mSlot;
+		
+		public LUEntry (Instance inst, long arrival) {
+			mInst = inst;
+			mArrival = arrival;
+		}
+	}
 }
@@ -23,16 +23,25 @@ import com.yahoo.labs.samoa.instances.Instance;
 import com.yahoo.labs.samoa.instances.Instances;
 import com.yahoo.labs.samoa.instances.InstancesHeader;
 
+import moa.classifiers.lazy.neighboursearch.NearestNeighbourSearch;
+import moa.classifiers.lazy.neighboursearch.RingBufferWindow;
+import moa.classifiers.lazy.neighboursearch.RingInstances;
+
 /**
  * Implementation of Time-Weighted Forgetting (TWF).
  * <p>
+ * With the linear search the window is kept in a ring buffer of primitive
+ * values and the neighbours are searched directly over it. With the other
+ * searches the window is a dataset stored in a ring, so evicting the oldest
+ * instance doesn't shift the window either.
+ * <p>
  * Valid options are:
  * <p> 
  * -f forgetting rate <br>
  * -t threshold <br>
  * 
  * @author Álvar Arnaiz-González
- * @version 20160523
+ * @version 20160701
  */
 public class TWF extends WFkNN {
 
@@ -46,15 +55,98 @@ public class TWF extends WFkNN {
 
 	private int mLimitOption;
 	
+	/**
+	 * Window used with the linear search.
+	 */
+	private RingBufferWindow mBuffer;
+	
 	@Override
 	public void trainOnInstanceImpl(Instance inst) {
+		Instance oldest;
+		
+		if (nearestNeighbourSearchOption.getChosenIndex() == 0) {
+			if (mBuffer == null)
+				mBuffer = new RingBufferWindow(inst.dataset(), mLimitOption);
+			
+			mBuffer.add(inst);
+			
+			return;
+		}
+		
 		if (mWindow == null)
-			mWindow = new Instances(inst.dataset());
+			mWindow = newWindow(inst.dataset());
+		
+		try {
+			if (mLimitOption <= mWindow.numInstances()) {
+				oldest = mWindow.instance(0);
+				mWindow.delete(0);
+				removeFromSearch(oldest);
+			}
+			
+			mWindow.add(inst);
+			addToSearch(inst);
+		} catch (Exception e) {
+			System.err.println("Error: kNN update failed.");
+			e.printStackTrace();
+		}
+	}
+
+	@Override
+	public double[] getVotesForInstance(Instance inst) {
+		double v[];
+		
+		if (nearestNeighbourSearchOption.getChosenIndex() != 0)
+			return super.getVotesForInstance(inst);
+		
+		if (mBuffer == null || mBuffer.size() == 0)
+			return new double[mNumClasses + 1];
+		
+		v = new double[mNumClasses + 1];
+		mBuffer.addVotes(inst, kOption.getValue(), v);
+		
+		return v;
+	}
+
+	@Override
+	protected double[] getVotesForInstance(Instance inst, 
+	                                        NearestNeighbourSearch search) throws Exception {
+		double v[];
+		
+		if (nearestNeighbourSearchOption.getChosenIndex() != 0)
+			return super.getVotesForInstance(inst, search);
 		
-		if (mLimitOption <= mWindow.numInstances())
-			mWindow.delete(0);
+		if (mBuffer == null || mBuffer.size() == 0)
+			return new double[mNumClasses + 1];
 		
-		mWindow.add(inst);
+		v = new double[mNumClasses + 1];
+		mBuffer.addVotesConcurrently(inst, kOption.getValue(), v);
+		
+		return v;
+	}
+
+	@Override
+	protected boolean prepareBatch() throws Exception {
+		if (nearestNeighbourSearchOption.getChosenIndex() != 0)
+			return super.prepareBatch();
+		
+		if (mBuffer != null)
+			mBuffer.updateRanges();
+		
+		return true;
+	}
+
+	@Override
+	protected NearestNeighbourSearch newBatchSearch() {
+		if (nearestNeighbourSearchOption.getChosenIndex() != 0)
+			return super.newBatchSearch();
+		
+		return null;
+	}
+
+	@Override
+	public void resetLearningImpl() {
+		super.resetLearningImpl();
+		mBuffer = null;
 	}
 
 	public String getPurposeString() {
@@ -63,10 +155,24 @@ public class TWF extends WFkNN {
 
 	@Override
 	public void setModelContext(InstancesHeader context) {
-		mWindow = new Instances(context,0);
-		mWindow.setClassIndex(context.classIndex());
+		mWindow = newWindow(context);
 		mNumClasses = context.classAttribute().numValues();
 		mLimitOption = (int)Math.round(Math.log(mThreshold.getValue()) / 
 		                     Math.log(mForgettingRate.getValue()));
+		mBuffer = null;
+	}
+
+	/**
+	 * Creates an empty window for the searches other than the linear one.
+	 * 
+	 * @param header Dataset with the information of the attributes.
+	 * @return The window.
+	 */
+	private Instances newWindow(Instances header) {
+		Instances window = new RingInstances(header);
+		
+		window.setClassIndex(header.classIndex());
+		
+		return window;
 	}
 }
@@ -18,6 +18,9 @@
  */
 package moa.classifiers.lazy;
 
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
 import com.github.javacliparser.IntOption;
 import com.github.javacliparser.MultiChoiceOption;
 import com.yahoo.labs.samoa.instances.Instance;
@@ -25,9 +28,14 @@ import com.yahoo.labs.samoa.instances.Instances;
 import com.yahoo.labs.samoa.instances.InstancesHeader;
 
 import moa.classifiers.AbstractClassifier;
+import moa.classifiers.lazy.neighboursearch.IndexNNSearch;
 import moa.classifiers.lazy.neighboursearch.KDTree;
 import moa.classifiers.lazy.neighboursearch.LinearNNSearch;
+import moa.classifiers.lazy.neighboursearch.LSHNNSearch;
+import moa.classifiers.lazy.neighboursearch.LinearNNSearchView;
+import moa.classifiers.lazy.neighboursearch.MTreeNNSearch;
 import moa.classifiers.lazy.neighboursearch.NearestNeighbourSearch;
+import moa.classifiers.lazy.neighboursearch.NormalizableDistance;
 import moa.core.Measurement;
 
 /**
@@ -35,10 +43,16 @@ import moa.core.Measurement;
  * <p>
  * Valid options are:
  * <p> 
- * -n number of nearest neighbour <br>
+ * -k number of nearest neighbour <br>
+ * -n nearest neighbour search: linear, KDTree, metric tree or LSH <br>
+ * -p number of threads for the batch predictions <br>
+ * -l number of hash tables of the approximate search <br>
+ * -h bits of the hash of each table of the approximate search <br>
+ * -s seed of the random hyperplanes of the approximate search <br>
+ * -v rate of approximate searches compared with the exact ones <br>
  * 
  * @author Álvar Arnaiz-González
- * @version 20160523
+ * @version 20160701
  */
 public abstract class WFkNN extends AbstractClassifier {
 
@@ -49,14 +63,57 @@ public abstract class WFkNN extends AbstractClassifier {
 
 	public MultiChoiceOption nearestNeighbourSearchOption = new MultiChoiceOption(
 	        "nearestNeighbourSearch", 'n', "Nearest Neighbour Search to use",
-	        new String[] {"LinearNN", "KDTree"},
+	        new String[] {"LinearNN", "KDTree", "MTree", "LSH"},
 	        new String[] {"Brute force search algorithm for nearest neighbour search.",
-	                      "KDTree search algorithm for nearest neighbour search"}, 0);
+	                      "KDTree search algorithm for nearest neighbour search",
+	                      "Metric tree search with insertions and deletions (pays off with large windows and few attributes)",
+	                      "Approximate search with locality-sensitive hashing (pays off from about 20 attributes)"}, 0);
+
+	public IntOption lshTablesOption = new IntOption("lshTables", 'l',
+	        "Number of hash tables of the approximate search (more tables, higher recall)",
+	        8, 1, Integer.MAX_VALUE);
+
+	public IntOption lshBitsOption = new IntOption("lshBits", 'h',
+	        "Bits of the hash of each table of the approximate search (more bits, faster and lower recall)",
+	        8, 1, 62);
+
+	public IntOption lshSeedOption = new IntOption("lshSeed", 's',
+	        "Seed of the random hyperplanes of the approximate search",
+	        1, Integer.MIN_VALUE, Integer.MAX_VALUE);
+
+	public IntOption recallSampleRateOption = new IntOption("recallSampleRate", 'v',
+	        "Compare one of every n approximate searches with the exact one to measure the recall, 0 to disable",
+	        0, 0, Integer.MAX_VALUE);
+
+	public IntOption numThreadsOption = new IntOption("numThreads", 'p',
+	        "Number of threads for the batch predictions, 0 for all the processors",
+	        1, 0, Integer.MAX_VALUE);
+
+	/**
+	 * Minimum number of instances predicted by each task of a batch.
+	 */
+	protected static final int BATCH_CHUNK = 16;
 
 	protected Instances mWindow;
 
 	protected int mNumClasses = 0;
 
+	/**
+	 * Search over the window. It is kept between predictions and updated
+	 * as instances enter the window.
+	 */
+	protected NearestNeighbourSearch mSearch;
+
+	/**
+	 * True if an instance has left the window since the search was built.
+	 */
+	protected boolean mSearchOutdated;
+
+	/**
+	 * Pool of threads for the batch predictions.
+	 */
+	protected transient ForkJoinPool mPool;
+
 	@Override
 	public void setModelContext(InstancesHeader context) {
 		try {
@@ -71,30 +128,302 @@ public abstract class WFkNN extends AbstractClassifier {
 	}
 
     public double[] getVotesForInstance(Instance inst) {
-		double v[] = new double[mNumClasses + 1];
 		try {
-			NearestNeighbourSearch search;
-			if (this.nearestNeighbourSearchOption.getChosenIndex()== 0) {
-				search = new LinearNNSearch(this.mWindow);  
-			} else {
-				search = new KDTree();
-				search.setInstances(this.mWindow);
-			}	
-			if (this.mWindow.numInstances()>0) {	
-				Instances neighbours = search.kNearestNeighbours(inst,Math.min(kOption.getValue(),this.mWindow.numInstances()));
-				for(int i = 0; i < neighbours.numInstances(); i++) {
-					v[(int)neighbours.instance(i).classValue()]++;
-				}
-			}
+			return getVotesForInstance(inst, 
+			         this.mWindow.numInstances() > 0 ? getSearch() : null);
 		} catch(Exception e) {
 			return new double[inst.numClasses()];
 		}
-		return v;
     }
 
+	/**
+	 * Computes the votes of an instance with a search over the window.
+	 * 
+	 * @param inst Instance to classify.
+	 * @param search Search over the window, null if the window is empty.
+	 * @return Votes for each class.
+	 * @throws Exception if the search failed.
+	 */
+	protected double[] getVotesForInstance(Instance inst, 
+	                                        NearestNeighbourSearch search) throws Exception {
+		double v[] = new double[mNumClasses + 1];
+		
+		if (this.mWindow.numInstances()>0) {	
+			Instances neighbours = search.kNearestNeighbours(inst,Math.min(kOption.getValue(),this.mWindow.numInstances()));
+			for(int i = 0; i < neighbours.numInstances(); i++) {
+				v[(int)neighbours.instance(i).classValue()]++;
+			}
+		}
+		
+		return v;
+	}
+
+	/**
+	 * Computes the votes of a batch of instances. All of them are predicted
+	 * with the current model, and the queries are spread across the threads
+	 * of the pool. The votes are the same as those of getVotesForInstance.
+	 * 
+	 * @param batch Instances to classify.
+	 * @return Votes for each class of each instance.
+	 */
+	public double[][] getVotesForInstances(Instances batch) {
+		double[][] votes = new double[batch.numInstances()][];
+		boolean parallel;
+		
+		try {
+			parallel = batch.numInstances() > BATCH_CHUNK && 
+			            numThreads() > 1 && prepareBatch();
+		} catch (Exception e) {
+			parallel = false;
+		}
+		
+		if (parallel)
+			getPool().invoke(new BatchVotes(batch, votes, 0, batch.numInstances()));
+		
+		// Sequential predictions, and those that failed in the pool.
+		for (int i = 0; i < votes.length; i++)
+			if (votes[i] == null)
+				votes[i] = getVotesForInstance(batch.instance(i));
+		
+		return votes;
+	}
+
+	/**
+	 * Prepares the model for a batch: after it, newBatchSearch and 
+	 * getVotesForInstance(Instance, NearestNeighbourSearch) must only read
+	 * the model, so that they can be called from several threads.
+	 * 
+	 * @return False if the batch can't be predicted in parallel.
+	 * @throws Exception if the search could not be built.
+	 */
+	protected boolean prepareBatch() throws Exception {
+		if (mWindow.numInstances() == 0)
+			return true;
+		
+		if (!(getSearch() instanceof LinearNNSearch))
+			return false;
+		
+		// Validates the distance before sharing it.
+		((NormalizableDistance) mSearch.getDistanceFunction()).getRanges();
+		
+		return true;
+	}
+
+	/**
+	 * Returns a search over the window for one of the threads of a batch.
+	 * 
+	 * @return Search over the window, null if the window is empty.
+	 */
+	protected NearestNeighbourSearch newBatchSearch() {
+		if (mWindow.numInstances() == 0)
+			return null;
+		
+		return new LinearNNSearchView((LinearNNSearch) mSearch);
+	}
+
+	/**
+	 * Returns the number of threads for the batch predictions.
+	 * 
+	 * @return Number of threads.
+	 */
+	protected int numThreads() {
+		if (numThreadsOption.getValue() == 0)
+			return Runtime.getRuntime().availableProcessors();
+		
+		return numThreadsOption.getValue();
+	}
+
+	/**
+	 * Returns the pool for the batch predictions, created on demand.
+	 * 
+	 * @return Pool of threads.
+	 */
+	protected ForkJoinPool getPool() {
+		if (mPool == null || mPool.getParallelism() != numThreads()) {
+			if (mPool != null)
+				mPool.shutdown();
+			
+			mPool = new ForkJoinPool(numThreads());
+		}
+		
+		return mPool;
+	}
+
+	/**
+	 * Creates a new search, according to the nearest neighbour search option,
+	 * over the instances.
+	 * 
+	 * @param data Instances where the search will be performed.
+	 * @return The new search.
+	 * @throws Exception if the search could not be built.
+	 */
+	protected NearestNeighbourSearch newSearch(Instances data) throws Exception {
+		NearestNeighbourSearch search;
+		
+		if (this.nearestNeighbourSearchOption.getChosenIndex()== 0) {
+			search = new LinearNNSearch(data);  
+		} else if (this.nearestNeighbourSearchOption.getChosenIndex()== 2) {
+			search = new MTreeNNSearch(data);
+		} else if (this.nearestNeighbourSearchOption.getChosenIndex()== 3) {
+			search = new LSHNNSearch(data, lshTablesOption.getValue(), 
+			                         lshBitsOption.getValue(), 
+			                         lshSeedOption.getValue());
+			((LSHNNSearch) search).setRecallSampleRate(recallSampleRateOption.getValue());
+		} else {
+			search = new KDTree();
+			search.setInstances(data);
+		}
+		
+		return search;
+	}
+
+	/**
+	 * Returns the search over the window. It is only rebuilt if it doesn't
+	 * exist yet, the window has been replaced or some instance has been
+	 * removed from the window.
+	 * 
+	 * @return The search over the window.
+	 * @throws Exception if the search could not be built.
+	 */
+	protected NearestNeighbourSearch getSearch() throws Exception {
+		if (mSearch == null || mSearch.getInstances() != mWindow) {
+			mSearch = newSearch(mWindow);
+			mSearchOutdated = false;
+		} else if (mSearchOutdated) {
+			mSearch.setInstances(mWindow);
+			mSearchOutdated = false;
+		}
+		
+		return mSearch;
+	}
+
+	/**
+	 * Updates the search with an instance just added to the window.
+	 * 
+	 * @param inst Instance added to the window.
+	 * @throws Exception if the search could not be updated.
+	 */
+	protected void addToSearch(Instance inst) throws Exception {
+		if (mSearch != null && !mSearchOutdated && 
+		      mSearch.getInstances() == mWindow)
+			mSearch.update(inst);
+	}
+
+	/**
+	 * Updates the search with an instance just removed from the window.
+	 * The linear search works directly over the window, so only its ranges
+	 * have to be recomputed, and only if inst was at the boundary of some 
+	 * range. The indexed searches (metric tree and LSH) delete the instance.
+	 * Other searches are rebuilt the next time they are needed.
+	 * 
+	 * @param inst Instance removed from the window (the object that was
+	 *             stored in it).
+	 * @throws Exception if the ranges could not be computed.
+	 */
+	protected void removeFromSearch(Instance inst) throws Exception {
+		NormalizableDistance distance;
+		double[][] ranges;
+		
+		if (mSearch == null || mSearchOutdated || 
+		      mSearch.getInstances() != mWindow)
+			return;
+		
+		if (mSearch instanceof IndexNNSearch) {
+			((IndexNNSearch) mSearch).remove(inst);
+			return;
+		}
+		
+		if (!(mSearch instanceof LinearNNSearch)) {
+			invalidateSearch();
+			return;
+		}
+		
+		distance = (NormalizableDistance) mSearch.getDistanceFunction();
+		ranges = distance.getRanges();
+		
+		for (int i = 0; i < inst.numAttributes(); i++) {
+			if (i != inst.classIndex() && !inst.isMissing(i) &&
+			      (inst.value(i) == ranges[i][NormalizableDistance.R_MIN] ||
+			       inst.value(i) == ranges[i][NormalizableDistance.R_MAX])) {
+				distance.setInstances(mWindow);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Marks the search as outdated after removing instances from the 
+	 * window. It will be rebuilt the next time it is needed.
+	 */
+	protected void invalidateSearch() {
+		mSearchOutdated = true;
+	}
+
 	@Override
 	public void resetLearningImpl() {
 		mWindow = null;
+		mSearch = null;
+		mSearchOutdated = false;
+	}
+
+	/**
+	 * Task that computes the votes of a range of a batch. The range is split
+	 * until it is small enough, and each piece is predicted with its own 
+	 * search. The votes of a failed prediction are left null.
+	 */
+	protected class BatchVotes extends RecursiveAction {
+
+		private static final long serialVersionUID = -2911506224731262517L;
+
+		/**
+		 * Instances to classify.
+		 */
+		private Instances mBatch;
+
+		/**
+		 * Votes of each instance of the batch.
+		 */
+		private double[][] mVotes;
+
+		/**
+		 * First instance of the range.
+		 */
+		private int mFrom;
+
+		/**
+		 * Last instance of the range (excluded).
+		 */
+		private int mTo;
+
+		public BatchVotes(Instances batch, double[][] votes, int from, int to) {
+			mBatch = batch;
+			mVotes = votes;
+			mFrom = from;
+			mTo = to;
+		}
+
+		@Override
+		protected void compute() {
+			NearestNeighbourSearch search;
+			int mid;
+			
+			if (mTo - mFrom > BATCH_CHUNK) {
+				mid = (mFrom + mTo) >>> 1;
+				invokeAll(new BatchVotes(mBatch, mVotes, mFrom, mid),
+				          new BatchVotes(mBatch, mVotes, mid, mTo));
+				return;
+			}
+			
+			search = newBatchSearch();
+			
+			for (int i = mFrom; i < mTo; i++) {
+				try {
+					mVotes[i] = getVotesForInstance(mBatch.instance(i), search);
+				} catch (Exception e) {
+					mVotes[i] = null;
+				}
+			}
+		}
 	}
 
 	@Override
@@ -104,6 +433,11 @@ public abstract class WFkNN extends AbstractClassifier {
 	
 	@Override
 	protected Measurement[] getModelMeasurementsImpl() {
+		if (mSearch instanceof LSHNNSearch && recallSampleRateOption.getValue() > 0)
+			return new Measurement[] {
+			        new Measurement("approximate kNN recall", 
+			                        ((LSHNNSearch) mSearch).getRecall())};
+		
 		return null;
 	}
 
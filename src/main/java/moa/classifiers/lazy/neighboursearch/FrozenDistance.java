@@ -0,0 +1,51 @@
+/*
+ * FrozenDistance.java
+ * Copyright (C) 2016 Burgos University, Spain
+ * @author Álvar Arnaiz-González
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package moa.classifiers.lazy.neighboursearch;
+
+import com.yahoo.labs.samoa.instances.Instances;
+
+/**
+ * Euclidean distance whose ranges are fixed when it is created. Metric
+ * indexes use it: the normalized distance changes with the ranges, and an
+ * index is only valid for the distance it was built with.
+ *
+ * @author Álvar Arnaiz-González
+ * @version 20160622
+ */
+public class FrozenDistance extends EuclideanDistance {
+
+	private static final long serialVersionUID = 6093275316247417953L;
+
+	/**
+	 * Creates the distance.
+	 *
+	 * @param header Dataset with the information of the attributes.
+	 * @param ranges Ranges of the attributes, they are copied.
+	 */
+	public FrozenDistance(Instances header, double[][] ranges) {
+		super(new Instances(header, 0));
+
+		// Validates the distance before fixing the ranges.
+		validate();
+		m_Ranges = new double[ranges.length][];
+
+		for (int i = 0; i < ranges.length; i++)
+			m_Ranges[i] = ranges[i].clone();
+	}
+}
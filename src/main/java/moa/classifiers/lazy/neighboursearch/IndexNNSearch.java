@@ -0,0 +1,277 @@
+/*
+ * IndexNNSearch.java
+ * Copyright (C) 2016 Burgos University, Spain
+ * @author Álvar Arnaiz-González
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package moa.classifiers.lazy.neighboursearch;
+
+import java.util.List;
+
+import com.yahoo.labs.samoa.instances.Instance;
+import com.yahoo.labs.samoa.instances.Instances;
+
+/**
+ * Nearest neighbour search that keeps an index over the instances, which
+ * supports inserting and deleting them. The index finds some candidates,
+ * and the neighbours are the nearest candidates according to the euclidean
+ * distance normalized with the current ranges of the instances, as in
+ * LinearNNSearch: the k nearest ones and those tied with the k-th one.
+ * <p>
+ * The index stores the instances of the dataset, so update must receive the
+ * last instance added to it and remove the instance deleted from it.
+ *
+ * @author Álvar Arnaiz-González
+ * @version 20160623
+ */
+public abstract class IndexNNSearch extends NearestNeighbourSearch {
+
+	private static final long serialVersionUID = 3260874107152925236L;
+
+	/**
+	 * Number of instances with missing values.
+	 */
+	protected int mNumMissing;
+
+	/**
+	 * Distances of the last search.
+	 */
+	protected double[] mDistances;
+
+	@Override
+	public void setInstances(Instances insts) throws Exception {
+		m_Instances = insts;
+		m_DistanceFunction.setInstances(insts);
+		mNumMissing = 0;
+
+		for (int i = 0; i < insts.numInstances(); i++)
+			if (hasMissing(insts.instance(i)))
+				mNumMissing++;
+
+		clearIndex();
+	}
+
+	/**
+	 * Updates the search with the last instance added to the dataset.
+	 *
+	 * @param ins Instance added to the dataset.
+	 * @throws Exception if the instances have not been set.
+	 */
+	@Override
+	public void update(Instance ins) throws Exception {
+		Instance stored;
+
+		if (m_Instances == null)
+			throw new Exception("No instances supplied yet. Cannot update " +
+			                    "without supplying a set of instances first.");
+
+		m_DistanceFunction.update(ins);
+		stored = m_Instances.instance(m_Instances.numInstances() - 1);
+
+		if (hasMissing(stored))
+			mNumMissing++;
+
+		addToIndex(stored);
+	}
+
+	/**
+	 * Updates the search with an instance deleted from the dataset. The
+	 * ranges are only recomputed if the instance was at the boundary of
+	 * some range.
+	 *
+	 * @param ins Instance deleted from the dataset (the object that was
+	 *            stored in it).
+	 * @throws Exception if the ranges could not be computed.
+	 */
+	public void remove(Instance ins) throws Exception {
+		double[][] ranges;
+
+		if (hasMissing(ins))
+			mNumMissing--;
+
+		removeFromIndex(ins);
+
+		ranges = ((NormalizableDistance) m_DistanceFunction).getRanges();
+
+		for (int i = 0; i < ins.numAttributes(); i++) {
+			if (i != ins.classIndex() && !ins.isMissing(i) &&
+			      (ins.value(i) == ranges[i][NormalizableDistance.R_MIN] ||
+			       ins.value(i) == ranges[i][NormalizableDistance.R_MAX])) {
+				m_DistanceFunction.setInstances(m_Instances);
+				return;
+			}
+		}
+	}
+
+	@Override
+	public Instance nearestNeighbour(Instance target) throws Exception {
+
+		return kNearestNeighbours(target, 1).instance(0);
+	}
+
+	@Override
+	public double[] getDistances() throws Exception {
+		if (mDistances == null)
+			throw new Exception("No distances available. Please call either " +
+			                    "kNearestNeighbours or nearestNeighbours first.");
+
+		return mDistances;
+	}
+
+	/**
+	 * Empties the index. It will be rebuilt from the instances.
+	 */
+	protected abstract void clearIndex();
+
+	/**
+	 * Adds an instance of the dataset to the index.
+	 *
+	 * @param inst Instance stored in the dataset.
+	 */
+	protected abstract void addToIndex(Instance inst);
+
+	/**
+	 * Removes an instance deleted from the dataset from the index.
+	 *
+	 * @param inst Instance that was stored in the dataset.
+	 */
+	protected abstract void removeFromIndex(Instance inst);
+
+	/**
+	 * Computes the distances (before post-processing) from target to all
+	 * the instances of the dataset.
+	 *
+	 * @param target Instance searched.
+	 * @param candidates List where the instances are added.
+	 * @return Distance to each instance.
+	 */
+	protected double[] allDistances(Instance target, List<Instance> candidates) {
+		double[] distances = new double[m_Instances.numInstances()];
+
+		for (int i = 0; i < m_Instances.numInstances(); i++) {
+			candidates.add(m_Instances.instance(i));
+			distances[i] = m_DistanceFunction.distance(target,
+			                 m_Instances.instance(i), Double.POSITIVE_INFINITY);
+		}
+
+		return distances;
+	}
+
+	/**
+	 * Selects the k nearest candidates and those tied with the k-th one,
+	 * sorted by distance.
+	 *
+	 * @param distances Distance (before post-processing) of each candidate.
+	 * @param num Number of candidates.
+	 * @param k Number of neighbours.
+	 * @return Positions of the neighbours in distances.
+	 */
+	protected int[] select(double[] distances, int num, int k) {
+		double[] best = new double[Math.max(k, 1)];
+		int[] order = new int[num];
+		int[] selected;
+		double kth = Double.NEGATIVE_INFINITY;
+		int size = 0, tmp;
+
+		for (int i = 0; i < num && k > 0; i++)
+			kth = insertBest(best, Math.min(i, k), distances[i]);
+
+		// Insertion sort of the neighbours: they are about k.
+		for (int i = 0; i < num; i++) {
+			if (distances[i] <= kth) {
+				order[size] = i;
+
+				for (int j = size; j > 0 &&
+				      distances[order[j - 1]] > distances[order[j]]; j--) {
+					tmp = order[j];
+					order[j] = order[j - 1];
+					order[j - 1] = tmp;
+				}
+
+				size++;
+			}
+		}
+
+		selected = new int[size];
+		System.arraycopy(order, 0, selected, 0, size);
+
+		return selected;
+	}
+
+	/**
+	 * Returns the neighbours selected and stores their distances.
+	 *
+	 * @param candidates Candidates.
+	 * @param distances Distance (before post-processing) of each candidate.
+	 * @param selected Positions of the neighbours, sorted by distance.
+	 * @return The neighbours.
+	 */
+	protected Instances neighbours(List<Instance> candidates,
+	                                double[] distances, int[] selected) {
+		Instances neighbours = new Instances(m_Instances, selected.length);
+
+		mDistances = new double[selected.length];
+
+		for (int i = 0; i < selected.length; i++) {
+			neighbours.add(candidates.get(selected[i]));
+			mDistances[i] = distances[selected[i]];
+		}
+
+		m_DistanceFunction.postProcessDistances(mDistances);
+
+		return neighbours;
+	}
+
+	/**
+	 * Inserts a distance in the sorted array of the best distances.
+	 *
+	 * @param best Best distances, sorted.
+	 * @param size Number of distances in best.
+	 * @param dist Distance to insert.
+	 * @return The k-th best distance if best is full, infinite otherwise.
+	 */
+	protected static double insertBest(double[] best, int size, double dist) {
+		int i;
+
+		if (size == best.length && dist >= best[size - 1])
+			return best[size - 1];
+
+		i = size == best.length ? size - 1 : size;
+
+		for (; i > 0 && best[i - 1] > dist; i--)
+			best[i] = best[i - 1];
+
+		best[i] = dist;
+
+		if (size + 1 >= best.length)
+			return best[best.length - 1];
+
+		return Double.POSITIVE_INFINITY;
+	}
+
+	/**
+	 * Checks if an instance has missing values (class excluded).
+	 *
+	 * @param inst Instance.
+	 * @return True if some value is missing.
+	 */
+	protected boolean hasMissing(Instance inst) {
+		for (int i = 0; i < inst.numAttributes(); i++)
+			if (i != inst.classIndex() && inst.isMissing(i))
+				return true;
+
+		return false;
+	}
+}
@@ -0,0 +1,331 @@
+/*
+ * InstanceSlotMap.java
+ * Copyright (C) 2016 Burgos University, Spain
+ * @author Álvar Arnaiz-González
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package moa.classifiers.lazy.neighboursearch;
+
+import java.io.Serializable;
+
+import com.yahoo.labs.samoa.instances.Instance;
+
+/**
+ * Assigns a stable integer slot to each stored instance. Two instances are
+ * the same if all their values (class included) are equal, so a copy of a
+ * stored instance (e.g. one returned by a search) is mapped to the same slot.
+ * <p>
+ * The lookup goes through an open-addressing hash table over the attribute
+ * values. Slots of removed instances are reused, so the slots are always
+ * lower than the maximum number of instances stored at the same time and
+ * they can index primitive arrays.
+ *
+ * @author Álvar Arnaiz-González
+ * @version 20160615
+ */
+public class InstanceSlotMap implements Serializable {
+
+	private static final long serialVersionUID = 2170391617417787417L;
+
+	/**
+	 * Empty position of the table.
+	 */
+	private static final int EMPTY = -1;
+
+	/**
+	 * Position of the table whose instance has been removed.
+	 */
+	private static final int DELETED = -2;
+
+	/**
+	 * Instance stored in each slot (null if the slot is free).
+	 */
+	private Instance[] mInstances;
+
+	/**
+	 * Hash of the instance stored in each slot.
+	 */
+	private int[] mHashes;
+
+	/**
+	 * Free slots, used as a stack.
+	 */
+	private int[] mFree;
+
+	/**
+	 * Number of free slots in mFree.
+	 */
+	private int mNumFree;
+
+	/**
+	 * Slots used at least once: [0, mNumSlots).
+	 */
+	private int mNumSlots;
+
+	/**
+	 * Number of instances stored.
+	 */
+	private int mSize;
+
+	/**
+	 * Hash table (open addressing with linear probing) with the slots.
+	 */
+	private int[] mTable;
+
+	/**
+	 * Positions of the table which are not empty (deleted included).
+	 */
+	private int mTableUsed;
+
+	/**
+	 * Creates an empty map.
+	 */
+	public InstanceSlotMap() {
+		mInstances = new Instance[16];
+		mHashes = new int[16];
+		mFree = new int[16];
+		mTable = newTable(32);
+	}
+
+	/**
+	 * Returns the slot of the instance with the same values as inst.
+	 *
+	 * @param inst Instance.
+	 * @return Slot of the instance, -1 if it is not stored.
+	 */
+	public int find(Instance inst) {
+		int hash = hash(inst);
+		int mask = mTable.length - 1;
+		int slot;
+
+		for (int pos = hash & mask; (slot = mTable[pos]) != EMPTY;
+		      pos = (pos + 1) & mask) {
+			if (slot != DELETED && mHashes[slot] == hash &&
+			      equalValues(mInstances[slot], inst))
+				return slot;
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Stores an instance which is not already in the map.
+	 *
+	 * @param inst Instance.
+	 * @return Slot assigned to the instance.
+	 */
+	public int add(Instance inst) {
+		int slot;
+
+		if (2 * (mTableUsed + 1) > mTable.length)
+			rehash();
+
+		if (mNumFree > 0) {
+			slot = mFree[--mNumFree];
+		} else {
+			if (mNumSlots == mInstances.length)
+				growSlots();
+
+			slot = mNumSlots++;
+		}
+
+		mInstances[slot] = inst;
+		mHashes[slot] = hash(inst);
+		mSize++;
+
+		insertInTable(slot);
+
+		return slot;
+	}
+
+	/**
+	 * Removes the instance of a slot. The slot will be reused.
+	 *
+	 * @param slot Slot.
+	 */
+	public void remove(int slot) {
+		int mask = mTable.length - 1;
+
+		for (int pos = mHashes[slot] & mask; mTable[pos] != EMPTY;
+		      pos = (pos + 1) & mask) {
+			if (mTable[pos] == slot) {
+				mTable[pos] = DELETED;
+				break;
+			}
+		}
+
+		mInstances[slot] = null;
+		mFree[mNumFree++] = slot;
+		mSize--;
+	}
+
+	/**
+	 * Returns the instance stored in a slot.
+	 *
+	 * @param slot Slot.
+	 * @return Instance, null if the slot is free.
+	 */
+	public Instance get(int slot) {
+
+		return mInstances[slot];
+	}
+
+	/**
+	 * Returns the number of instances stored.
+	 *
+	 * @return Number of instances.
+	 */
+	public int size() {
+
+		return mSize;
+	}
+
+	/**
+	 * Returns an upper bound of the slots: all of them are lower.
+	 *
+	 * @return Number of slots used until now.
+	 */
+	public int numSlots() {
+
+		return mNumSlots;
+	}
+
+	/**
+	 * Computes the hash of the values of an instance.
+	 *
+	 * @param inst Instance.
+	 * @return Hash.
+	 */
+	public static int hash(Instance inst) {
+		long bits;
+		int h = 1;
+
+		for (int i = 0; i < inst.numAttributes(); i++) {
+			bits = Double.doubleToLongBits(value(inst, i));
+			h = 31 * h + (int) (bits ^ (bits >>> 32));
+		}
+
+		// Spread the bits, the table uses the lower ones.
+		h ^= (h >>> 16);
+		h *= 0x85ebca6b;
+		h ^= (h >>> 13);
+
+		return h;
+	}
+
+	/**
+	 * Checks if two instances have the same values.
+	 *
+	 * @param inst1 First instance.
+	 * @param inst2 Second instance.
+	 * @return True if all the values are equal (missing values are equal).
+	 */
+	public static boolean equalValues(Instance inst1, Instance inst2) {
+		if (inst1 == inst2)
+			return true;
+
+		if (inst1.numAttributes() != inst2.numAttributes())
+			return false;
+
+		for (int i = 0; i < inst1.numAttributes(); i++)
+			if (Double.doubleToLongBits(value(inst1, i)) !=
+			      Double.doubleToLongBits(value(inst2, i)))
+				return false;
+
+		return true;
+	}
+
+	/**
+	 * Returns a value of the instance, NaN if missing.
+	 *
+	 * @param inst Instance.
+	 * @param i Index of the attribute.
+	 * @return Value.
+	 */
+	private static double value(Instance inst, int i) {
+		if (inst.isMissing(i))
+			return Double.NaN;
+
+		return inst.value(i);
+	}
+
+	/**
+	 * Inserts a slot in the table.
+	 *
+	 * @param slot Slot.
+	 */
+	private void insertInTable(int slot) {
+		int mask = mTable.length - 1;
+		int pos = mHashes[slot] & mask;
+
+		while (mTable[pos] != EMPTY && mTable[pos] != DELETED)
+			pos = (pos + 1) & mask;
+
+		if (mTable[pos] == EMPTY)
+			mTableUsed++;
+
+		mTable[pos] = slot;
+	}
+
+	/**
+	 * Rebuilds the table, removing the deleted positions and growing it if
+	 * needed.
+	 */
+	private void rehash() {
+		int length = mTable.length;
+
+		while (4 * (mSize + 1) > length)
+			length *= 2;
+
+		mTable = newTable(length);
+		mTableUsed = 0;
+
+		for (int slot = 0; slot < mNumSlots; slot++)
+			if (mInstances[slot] != null)
+				insertInTable(slot);
+	}
+
+	/**
+	 * Doubles the arrays of the slots.
+	 */
+	private void growSlots() {
+		Instance[] instances = new Instance[mInstances.length * 2];
+		int[] hashes = new int[mInstances.length * 2];
+		int[] free = new int[mInstances.length * 2];
+
+		System.arraycopy(mInstances, 0, instances, 0, mNumSlots);
+		System.arraycopy(mHashes, 0, hashes, 0, mNumSlots);
+		System.arraycopy(mFree, 0, free, 0, mNumFree);
+
+		mInstances = instances;
+		mHashes = hashes;
+		mFree = free;
+	}
+
+	/**
+	 * Creates an empty table.
+	 *
+	 * @param length Length, power of two.
+	 * @return The table.
+	 */
+	private static int[] newTable(int length) {
+		int[] table = new int[length];
+
+		for (int i = 0; i < length; i++)
+			table[i] = EMPTY;
+
+		return table;
+	}
+}
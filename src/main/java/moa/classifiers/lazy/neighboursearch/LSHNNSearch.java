@@ -0,0 +1,456 @@
+/*
+ * LSHNNSearch.java
+ * Copyright (C) 2016 Burgos University, Spain
+ * @author Álvar Arnaiz-González
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package moa.classifiers.lazy.neighboursearch;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Random;
+
+import com.yahoo.labs.samoa.instances.Instance;
+import com.yahoo.labs.samoa.instances.Instances;
+
+/**
+ * Approximate nearest neighbour search with locality-sensitive hashing
+ * (random hyperplanes). Each of the hash tables splits the normalized space
+ * with some random hyperplanes, each one through a random instance, and the
+ * candidates are the instances that share the bucket of the target in some
+ * table. If there are less than k, the buckets that differ in one bit are
+ * also checked and, if they are still not enough, all the instances. The
+ * neighbours are the nearest candidates.
+ * <p>
+ * More tables find more candidates (higher recall, slower), and more bits
+ * per table make the buckets smaller (faster, lower recall). Only numeric
+ * attributes are hashed and missing values are placed at the center. The
+ * hash uses the ranges of the instances when the tables were built, and
+ * they are rebuilt when the ranges have changed too much.
+ * <p>
+ * The recall of the search can be measured: every n-th search is repeated
+ * over all the instances, and the fraction of the exact neighbours found is
+ * averaged.
+ *
+ * @author Álvar Arnaiz-González
+ * @version 20160623
+ */
+public class LSHNNSearch extends IndexNNSearch {
+
+	private static final long serialVersionUID = -2384019628749171505L;
+
+	/**
+	 * Maximum change of the width of an attribute, since the tables were
+	 * built, before rebuilding them.
+	 */
+	private static final double MAX_SCALE = 2;
+
+	/**
+	 * Number of hash tables.
+	 */
+	private int mNumTables;
+
+	/**
+	 * Number of bits (hyperplanes) of the hash of each table.
+	 */
+	private int mNumBits;
+
+	/**
+	 * Seed for the hyperplanes.
+	 */
+	private long mSeed;
+
+	/**
+	 * Every how many searches the recall is measured, 0 never.
+	 */
+	private int mRecallSampleRate;
+
+	/**
+	 * Numeric attributes hashed.
+	 */
+	private int[] mAttIndex;
+
+	/**
+	 * Normal vector of each hyperplane: [table * bits + bit][attribute].
+	 */
+	private double[][] mPlanes;
+
+	/**
+	 * Offset of each hyperplane: the projection of the instance it passes
+	 * through.
+	 */
+	private double[] mOffsets;
+
+	/**
+	 * Minimum of each attribute hashed when the tables were built.
+	 */
+	private double[] mMin;
+
+	/**
+	 * Width of each attribute hashed when the tables were built.
+	 */
+	private double[] mWidth;
+
+	/**
+	 * Buckets of each table. Null if they must be rebuilt.
+	 */
+	private List<HashMap<Long, ArrayList<Instance>>> mTables;
+
+	/**
+	 * Number of searches performed.
+	 */
+	private long mNumSearches;
+
+	/**
+	 * Sum of the recall of the searches measured.
+	 */
+	private double mRecallSum;
+
+	/**
+	 * Number of searches whose recall has been measured.
+	 */
+	private long mNumRecalls;
+
+	/**
+	 * Creates a search over the instances.
+	 *
+	 * @param insts Instances.
+	 * @param numTables Number of hash tables.
+	 * @param numBits Number of bits of the hash of each table (up to 62).
+	 * @param seed Seed for the hyperplanes.
+	 * @throws Exception if the distance could not be initialized.
+	 */
+	public LSHNNSearch(Instances insts, int numTables, int numBits, long seed)
+	        throws Exception {
+		super();
+		mNumTables = Math.max(1, numTables);
+		mNumBits = Math.max(1, Math.min(62, numBits));
+		mSeed = seed;
+		setInstances(insts);
+	}
+
+	/**
+	 * Sets every how many searches the recall is measured.
+	 *
+	 * @param rate Rate, 0 to not measure it.
+	 */
+	public void setRecallSampleRate(int rate) {
+		mRecallSampleRate = rate;
+	}
+
+	/**
+	 * Returns the mean recall of the searches measured.
+	 *
+	 * @return Recall, NaN if none has been measured.
+	 */
+	public double getRecall() {
+		if (mNumRecalls == 0)
+			return Double.NaN;
+
+		return mRecallSum / mNumRecalls;
+	}
+
+	@Override
+	public Instances kNearestNeighbours(Instance target, int kNN)
+	        throws Exception {
+		IdentityHashMap<Instance, Boolean> found;
+		List<Instance> candidates = new ArrayList<Instance>();
+		ArrayList<Instance> bucket;
+		double[] distances;
+		long[] keys;
+		int[] selected;
+		int k = Math.min(kNN, m_Instances.numInstances());
+
+		if (k <= 0)
+			return neighbours(candidates, new double[0], new int[0]);
+
+		if (mTables == null || rangesChanged())
+			buildTables();
+
+		keys = keys(target);
+		found = new IdentityHashMap<Instance, Boolean>();
+
+		for (int t = 0; t < mNumTables; t++)
+			addCandidates(mTables.get(t).get(keys[t]), found, candidates);
+
+		// Multi-probe: buckets of the neighbouring cells.
+		for (int t = 0; t < mNumTables && candidates.size() < k; t++)
+			for (int b = 0; b < mNumBits; b++)
+				addCandidates(mTables.get(t).get(keys[t] ^ (1L << b)), found,
+				              candidates);
+
+		if (candidates.size() < k) {
+			candidates.clear();
+			distances = allDistances(target, candidates);
+		} else {
+			distances = new double[candidates.size()];
+
+			for (int i = 0; i < candidates.size(); i++)
+				distances[i] = m_DistanceFunction.distance(target,
+				                 candidates.get(i), Double.POSITIVE_INFINITY);
+		}
+
+		selected = select(distances, candidates.size(), k);
+		mNumSearches++;
+
+		if (mRecallSampleRate > 0 && mNumSearches % mRecallSampleRate == 0)
+			measureRecall(target, candidates, selected, k);
+
+		return neighbours(candidates, distances, selected);
+	}
+
+	/**
+	 * Adds the instances of a bucket which are not already candidates.
+	 *
+	 * @param bucket Bucket, it may be null.
+	 * @param found Candidates found.
+	 * @param candidates List of the candidates.
+	 */
+	private void addCandidates(ArrayList<Instance> bucket,
+	                            IdentityHashMap<Instance, Boolean> found,
+	                            List<Instance> candidates) {
+		if (bucket == null)
+			return;
+
+		for (Instance inst : bucket)
+			if (found.put(inst, Boolean.TRUE) == null)
+				candidates.add(inst);
+	}
+
+	@Override
+	protected void clearIndex() {
+		mTables = null;
+	}
+
+	@Override
+	protected void addToIndex(Instance inst) {
+		long[] keys;
+
+		if (mTables == null)
+			return;
+
+		keys = keys(inst);
+
+		for (int t = 0; t < mNumTables; t++) {
+			ArrayList<Instance> bucket = mTables.get(t).get(keys[t]);
+
+			if (bucket == null) {
+				bucket = new ArrayList<Instance>(4);
+				mTables.get(t).put(keys[t], bucket);
+			}
+
+			bucket.add(inst);
+		}
+	}
+
+	@Override
+	protected void removeFromIndex(Instance inst) {
+		ArrayList<Instance> bucket;
+		long[] keys;
+		int pos;
+
+		if (mTables == null)
+			return;
+
+		keys = keys(inst);
+
+		for (int t = 0; t < mNumTables; t++) {
+			bucket = mTables.get(t).get(keys[t]);
+			pos = -1;
+
+			for (int i = 0; bucket != null && i < bucket.size() && pos == -1; i++)
+				if (bucket.get(i) == inst)
+					pos = i;
+
+			if (pos == -1) {
+				mTables = null;
+				return;
+			}
+
+			bucket.set(pos, bucket.get(bucket.size() - 1));
+			bucket.remove(bucket.size() - 1);
+
+			if (bucket.isEmpty())
+				mTables.get(t).remove(keys[t]);
+		}
+	}
+
+	/**
+	 * Compares the neighbours found with the exact ones and accumulates the
+	 * fraction of the exact neighbours found.
+	 *
+	 * @param target Instance searched.
+	 * @param candidates Candidates of the search.
+	 * @param selected Positions of the neighbours in the candidates.
+	 * @param k Number of neighbours.
+	 */
+	private void measureRecall(Instance target, List<Instance> candidates,
+	                            int[] selected, int k) {
+		IdentityHashMap<Instance, Boolean> exact;
+		List<Instance> all = new ArrayList<Instance>();
+		double[] distances = allDistances(target, all);
+		int[] exactSelected = select(distances, all.size(), k);
+		int hits = 0;
+
+		exact = new IdentityHashMap<Instance, Boolean>();
+
+		for (int i = 0; i < exactSelected.length; i++)
+			exact.put(all.get(exactSelected[i]), Boolean.TRUE);
+
+		for (int i = 0; i < selected.length; i++)
+			if (exact.remove(candidates.get(selected[i])) != null)
+				hits++;
+
+		mRecallSum += (double) hits / exactSelected.length;
+		mNumRecalls++;
+	}
+
+	/**
+	 * Checks if the ranges have changed too much since the tables were
+	 * built.
+	 *
+	 * @return True if the tables should be rebuilt.
+	 * @throws Exception if the ranges could not be computed.
+	 */
+	private boolean rangesChanged() throws Exception {
+		double[][] ranges = ((NormalizableDistance) m_DistanceFunction).getRanges();
+		double width;
+
+		for (int j = 0; j < mAttIndex.length; j++) {
+			width = ranges[mAttIndex[j]][NormalizableDistance.R_WIDTH];
+
+			if (!(width > 0) || !(mWidth[j] > 0)) {
+				if ((width > 0) != (mWidth[j] > 0))
+					return true;
+			} else if (width > MAX_SCALE * mWidth[j] ||
+			            width * MAX_SCALE < mWidth[j]) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Builds the tables over the instances, freezing the current ranges.
+	 *
+	 * @throws Exception if the ranges could not be computed.
+	 */
+	private void buildTables() throws Exception {
+		double[][] ranges = ((NormalizableDistance) m_DistanceFunction).getRanges();
+		Random random = new Random(mSeed);
+		double[] values;
+		int num = 0;
+
+		if (mPlanes == null) {
+			for (int i = 0; i < m_Instances.numAttributes(); i++)
+				if (i != m_Instances.classIndex() &&
+				      m_Instances.attribute(i).isNumeric())
+					num++;
+
+			mAttIndex = new int[num];
+			num = 0;
+
+			for (int i = 0; i < m_Instances.numAttributes(); i++)
+				if (i != m_Instances.classIndex() &&
+				      m_Instances.attribute(i).isNumeric())
+					mAttIndex[num++] = i;
+
+			mPlanes = new double[mNumTables * mNumBits][mAttIndex.length];
+
+			for (int p = 0; p < mPlanes.length; p++)
+				for (int j = 0; j < mAttIndex.length; j++)
+					mPlanes[p][j] = random.nextGaussian();
+
+			mOffsets = new double[mPlanes.length];
+			mMin = new double[mAttIndex.length];
+			mWidth = new double[mAttIndex.length];
+		}
+
+		for (int j = 0; j < mAttIndex.length; j++) {
+			mMin[j] = ranges[mAttIndex[j]][NormalizableDistance.R_MIN];
+			mWidth[j] = ranges[mAttIndex[j]][NormalizableDistance.R_WIDTH];
+		}
+
+		// Each hyperplane passes through a random instance.
+		for (int p = 0; p < mPlanes.length; p++) {
+			values = normalize(m_Instances.instance(
+			                     random.nextInt(m_Instances.numInstances())));
+			mOffsets[p] = 0;
+
+			for (int j = 0; j < values.length; j++)
+				mOffsets[p] += mPlanes[p][j] * values[j];
+		}
+
+		mTables = new ArrayList<HashMap<Long, ArrayList<Instance>>>(mNumTables);
+
+		for (int t = 0; t < mNumTables; t++)
+			mTables.add(new HashMap<Long, ArrayList<Instance>>());
+
+		for (int i = 0; i < m_Instances.numInstances(); i++)
+			addToIndex(m_Instances.instance(i));
+	}
+
+	/**
+	 * Computes the key of an instance in each table: one bit per
+	 * hyperplane, set if the instance is on its positive side.
+	 *
+	 * @param inst Instance.
+	 * @return Key in each table.
+	 */
+	private long[] keys(Instance inst) {
+		double[] values = normalize(inst);
+		long[] keys = new long[mNumTables];
+		double[] plane;
+		double dot;
+
+		for (int t = 0; t < mNumTables; t++) {
+			for (int b = 0; b < mNumBits; b++) {
+				plane = mPlanes[t * mNumBits + b];
+				dot = 0;
+
+				for (int j = 0; j < values.length; j++)
+					dot += plane[j] * values[j];
+
+				if (dot >= mOffsets[t * mNumBits + b])
+					keys[t] |= 1L << b;
+			}
+		}
+
+		return keys;
+	}
+
+	/**
+	 * Returns the normalized values of the attributes hashed, with the 
+	 * ranges frozen. Missing values are placed at the center.
+	 *
+	 * @param inst Instance.
+	 * @return Normalized values.
+	 */
+	private double[] normalize(Instance inst) {
+		double[] values = new double[mAttIndex.length];
+
+		for (int j = 0; j < mAttIndex.length; j++) {
+			if (inst.isMissing(mAttIndex[j]) || !(mWidth[j] > 0))
+				values[j] = 0.5;
+			else
+				values[j] = (inst.value(mAttIndex[j]) - mMin[j]) / mWidth[j];
+		}
+
+		return values;
+	}
+}
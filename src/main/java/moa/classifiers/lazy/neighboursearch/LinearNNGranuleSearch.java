@@ -27,9 +27,14 @@ import com.yahoo.labs.samoa.instances.Instances;
 
 /**
  * Auxiliary class for search in a list of granules.
+ * <p>
+ * The nearest granule, and the nearest ones of the same and of other class,
+ * are found in a single pass without allocating: the distance to each 
+ * granule is abandoned as soon as it exceeds the one of the nearest found
+ * so far.
  * 
  * @author Álvar Arnaiz-González
- * @version 20160526
+ * @version 20160701
  */
 public class LinearNNGranuleSearch extends LinearNNSearch {
 	
@@ -40,6 +45,11 @@ public class LinearNNGranuleSearch extends LinearNNSearch {
 	 */
 	private ArrayList<Granule> mGranules;
 	
+	/**
+	 * Distance to the nearest granule of the last search.
+	 */
+	private double[] mNearestDistance = new double[1];
+	
 	/**
 	 * Default constructor of a granules' search.
 	 * The dataset will not be taken into account.
@@ -53,14 +63,113 @@ public class LinearNNGranuleSearch extends LinearNNSearch {
 	}
 	
 	/**
-	 * Returns the nearest neighbour of target.
+	 * Returns the nearest neighbour of target: the center of the nearest 
+	 * granule.
 	 * 
-	 * @param target The instance to find the k nearest neighbours for.
-	 * @return the k nearest neighbors
-	 * @throws Exception if the neighbours could not be found.
+	 * @param target The instance to find the nearest neighbour for.
+	 * @return the nearest neighbour
+	 * @throws Exception if the neighbour could not be found.
 	 */
 	public Instance nearestNeighbour(Instance target) throws Exception {
-		return (kNearestNeighbours(target, 1)).instance(0);
+		int nearest = nearestGranule(target);
+		
+		if (nearest < 0)
+			throw new Exception("There are no granules.");
+		
+		m_Distances = mNearestDistance;
+		
+		return mGranules.get(nearest).instance();
+	}
+	
+	/**
+	 * Returns the index of the nearest granule to target; among those at 
+	 * the same distance, the first one. The distance is that of 
+	 * getNearestDistance.
+	 * 
+	 * @param target The instance to find the nearest granule for.
+	 * @return Index of the nearest granule, -1 if there are no granules.
+	 * @throws Exception if the distance could not be computed.
+	 */
+	public int nearestGranule(Instance target) throws Exception {
+		double distance, best = Double.POSITIVE_INFINITY;
+		Instance center;
+		int nearest = -1;
+		
+		for (int i = 0; i < mGranules.size(); i++) {
+			center = mGranules.get(i).instance();
+			
+			if (target == center) // for hold-one-out cross-validation
+				continue;
+			
+			distance = m_DistanceFunction.distance(target, center, best);
+			
+			if (distance == 0.0 && m_SkipIdentical)
+				continue;
+			
+			if (nearest < 0 || distance < best) {
+				best = distance;
+				nearest = i;
+			}
+		}
+		
+		mNearestDistance[0] = best;
+		m_DistanceFunction.postProcessDistances(mNearestDistance);
+		
+		return nearest;
+	}
+	
+	/**
+	 * Returns the distance to the nearest granule of the last search.
+	 * 
+	 * @return Distance.
+	 */
+	public double getNearestDistance() {
+		
+		return mNearestDistance[0];
+	}
+	
+	/**
+	 * Finds the nearest granule of the same class as target, and the 
+	 * nearest one of other class, in a single pass; among those at the 
+	 * same distance, the first one. It doesn't modify the search, so it can
+	 * be called from several threads at the same time.
+	 * 
+	 * @param target The instance to find the nearest granules for.
+	 * @param indexPosNeg Index of the nearest granule of the same[0]/other[1]
+	 *        class, -1 if there is none (output).
+	 * @param distPosNeg Distance to the nearest granule of the 
+	 *        same[0]/other[1] class (output).
+	 * @throws Exception if the distance could not be computed.
+	 */
+	public void nearestGranules(Instance target, int[] indexPosNeg, 
+	                            double[] distPosNeg) throws Exception {
+		double distance;
+		Granule granule;
+		int k;
+		
+		indexPosNeg[0] = indexPosNeg[1] = -1;
+		distPosNeg[0] = distPosNeg[1] = Double.POSITIVE_INFINITY;
+		
+		for (int i = 0; i < mGranules.size(); i++) {
+			granule = mGranules.get(i);
+			
+			if (target == granule.instance()) // for hold-one-out cross-validation
+				continue;
+			
+			k = target.classValue() == granule.classValue() ? 0 : 1;
+			distance = m_DistanceFunction.distance(target, granule.instance(), 
+			                                       distPosNeg[k]);
+			
+			if (distance == 0.0 && m_SkipIdentical)
+				continue;
+			
+			if (indexPosNeg[k] < 0 || distance < distPosNeg[k]) {
+				distPosNeg[k] = distance;
+				indexPosNeg[k] = i;
+			}
+		}
+		
+		m_DistanceFunction.postProcessDistances(distPosNeg);
 	}
 
 	/**
@@ -0,0 +1,72 @@
+/*
+ * LinearNNSearchView.java
+ * Copyright (C) 2016 Burgos University, Spain
+ * @author Álvar Arnaiz-González
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package moa.classifiers.lazy.neighboursearch;
+
+import com.yahoo.labs.samoa.instances.Instance;
+import com.yahoo.labs.samoa.instances.Instances;
+
+/**
+ * Read-only view of a LinearNNSearch: it shares the instances and the
+ * distance function of the search, but keeps its own distances. Several
+ * views of the same search can be queried at the same time from different
+ * threads, as long as the instances are not modified and the distance
+ * function has been validated (e.g. calling getRanges) beforehand.
+ * <p>
+ * The neighbours found are the same as those of the search.
+ *
+ * @author Álvar Arnaiz-González
+ * @version 20160621
+ */
+public class LinearNNSearchView extends LinearNNSearch {
+
+	private static final long serialVersionUID = -4021795218326413874L;
+
+	/**
+	 * Creates a view of a search.
+	 *
+	 * @param search Search to share.
+	 */
+	public LinearNNSearchView(LinearNNSearch search) {
+		m_Instances = search.getInstances();
+		m_DistanceFunction = search.getDistanceFunction();
+		m_SkipIdentical = search.getSkipIdentical();
+	}
+
+	/**
+	 * The view can't change the instances of the search.
+	 *
+	 * @param insts Instances.
+	 * @throws Exception always.
+	 */
+	@Override
+	public void setInstances(Instances insts) throws Exception {
+		throw new Exception("A view of a search can't be modified.");
+	}
+
+	/**
+	 * The view can't change the distance function of the search.
+	 *
+	 * @param ins Instance.
+	 * @throws Exception always.
+	 */
+	@Override
+	public void update(Instance ins) throws Exception {
+		throw new Exception("A view of a search can't be modified.");
+	}
+}
@@ -0,0 +1,364 @@
+/*
+ * MTreeNNSearch.java
+ * Copyright (C) 2016 Burgos University, Spain
+ * @author Álvar Arnaiz-González
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package moa.classifiers.lazy.neighboursearch;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+import com.yahoo.labs.samoa.instances.Instance;
+import com.yahoo.labs.samoa.instances.Instances;
+
+import utils.indexstructure.Distance;
+import utils.indexstructure.MTree;
+
+/**
+ * Nearest neighbour search over a metric tree (M-tree), which supports
+ * inserting and deleting instances without rebuilding it.
+ * <p>
+ * The neighbours are those of LinearNNSearch: the k nearest ones (and those
+ * tied with the k-th one) according to the euclidean distance normalized
+ * with the current ranges of the instances. The tree stores the numeric
+ * values of each instance normalized with the ranges frozen when it was
+ * built, so its distance, times a factor s, bounds the current one from
+ * below. A search asks the tree for its k-th nearest distance r and for the
+ * instances within r, and computes the current distance of those. If the
+ * k-th of them, d, could be exceeded by some instance outside r (d / s > r),
+ * the instances within d / s are checked too. When the ranges have changed
+ * too much since the tree was built, it is rebuilt. If there are missing
+ * values the distance can't be bounded and all the instances are checked.
+ * <p>
+ * The neighbours are sorted by distance, but those at the same distance may
+ * come in another order than in LinearNNSearch.
+ *
+ * @author Álvar Arnaiz-González
+ * @version 20160701
+ */
+public class MTreeNNSearch extends IndexNNSearch {
+
+	private static final long serialVersionUID = -7703914305245838311L;
+
+	/**
+	 * Maximum change of the width of an attribute, since the tree was built,
+	 * before rebuilding it.
+	 */
+	private static final double MAX_SCALE = 2;
+
+	/**
+	 * Minimum and maximum capacity of the nodes of the tree.
+	 */
+	private static final int MIN_CAPACITY = 6, MAX_CAPACITY = 15;
+
+	/**
+	 * Relative slack of the radius of the queries, which protects them from
+	 * rounding errors.
+	 */
+	private static final double SLACK = 1e-9;
+
+	/**
+	 * Metric tree over the instances. Null if it must be rebuilt.
+	 */
+	private MTree<TreeEntry> mTree;
+
+	/**
+	 * Entry of the tree of each instance.
+	 */
+	private IdentityHashMap<Instance, TreeEntry> mEntries;
+
+	/**
+	 * Ranges of the instances when the tree was built.
+	 */
+	private double[][] mTreeRanges;
+
+	/**
+	 * Index in the instances of the attributes normalized in the tree:
+	 * numeric ones whose frozen range is not empty.
+	 */
+	private int[] mTreeAtts;
+
+	/**
+	 * Creates an empty search.
+	 */
+	public MTreeNNSearch() {
+		super();
+	}
+
+	/**
+	 * Creates a search over the instances.
+	 *
+	 * @param insts Instances.
+	 * @throws Exception if the distance could not be initialized.
+	 */
+	public MTreeNNSearch(Instances insts) throws Exception {
+		this();
+		setInstances(insts);
+	}
+
+	@Override
+	public Instances kNearestNeighbours(Instance target, int kNN)
+	        throws Exception {
+		List<Instance> candidates = new ArrayList<Instance>();
+		double[] distances;
+		TreeEntry query;
+		double scale, radius, kth;
+		int k = Math.min(kNN, m_Instances.numInstances());
+
+		if (k <= 0)
+			return neighbours(candidates, new double[0], new int[0]);
+
+		scale = mNumMissing > 0 || hasMissing(target) ? 0 : lowerScale();
+
+		// The tree can't bound the distance: check all the instances.
+		if (scale == 0) {
+			distances = allDistances(target, candidates);
+
+			return neighbours(candidates, distances,
+			                  select(distances, candidates.size(), k));
+		}
+
+		if (scale < 1 / MAX_SCALE || mTree == null) {
+			buildTree();
+			scale = 1;
+		}
+
+		query = new TreeEntry(target);
+		radius = mTree.kNearestDistance(query, k);
+		distances = treeDistances(target, query, radius * (1 + 2 * SLACK), 
+		                          candidates);
+		kth = Math.sqrt(kthDistance(distances, candidates.size(), k));
+
+		// Some instance outside radius could be nearer than the k-th.
+		if (kth / scale > radius * (1 + SLACK)) {
+			candidates.clear();
+			distances = treeDistances(target, query,
+			                          kth / scale * (1 + SLACK), candidates);
+		}
+
+		return neighbours(candidates, distances,
+		                  select(distances, candidates.size(), k));
+	}
+
+	@Override
+	protected void clearIndex() {
+		mTree = null;
+		mEntries = null;
+		mTreeRanges = null;
+		mTreeAtts = null;
+	}
+
+	@Override
+	protected void addToIndex(Instance inst) {
+		TreeEntry entry;
+
+		if (mTree == null)
+			return;
+
+		entry = new TreeEntry(inst);
+		mEntries.put(inst, entry);
+		mTree.add(entry);
+	}
+
+	@Override
+	protected void removeFromIndex(Instance inst) {
+		TreeEntry entry;
+
+		if (mTree == null)
+			return;
+
+		entry = mEntries.remove(inst);
+
+		if (entry == null || !mTree.remove(entry))
+			clearIndex();
+	}
+
+	/**
+	 * Computes the current distances (before post-processing) from target
+	 * to the instances within a radius of the tree.
+	 *
+	 * @param target Instance searched.
+	 * @param query Entry of target.
+	 * @param radius Radius of the query in the tree.
+	 * @param candidates List where the instances are added.
+	 * @return Distance to each instance.
+	 */
+	private double[] treeDistances(Instance target, TreeEntry query,
+	                                double radius, List<Instance> candidates) {
+		List<TreeEntry> inside = mTree.rangeQuery(query, radius);
+		double[] distances = new double[inside.size()];
+
+		for (int i = 0; i < distances.length; i++) {
+			candidates.add(inside.get(i).mInst);
+			distances[i] = m_DistanceFunction.distance(target,
+			                 inside.get(i).mInst, Double.POSITIVE_INFINITY);
+		}
+
+		return distances;
+	}
+
+	/**
+	 * Returns the k-th lowest distance.
+	 *
+	 * @param distances Distances.
+	 * @param num Number of distances.
+	 * @param k Position of the distance.
+	 * @return The k-th distance, infinite if there are less than k.
+	 */
+	private double kthDistance(double[] distances, int num, int k) {
+		double[] best = new double[k];
+		double kth = Double.POSITIVE_INFINITY;
+
+		for (int i = 0; i < num; i++)
+			kth = insertBest(best, Math.min(i, k), distances[i]);
+
+		return kth;
+	}
+
+	/**
+	 * Returns the factor s that bounds the current distance with the one of
+	 * the tree: current distance >= s * tree distance. It is the minimum
+	 * ratio between the frozen and the current width of each numeric
+	 * attribute. If some width has grown or shrunk more than MAX_SCALE times,
+	 * or an attribute ignored by the tree has now a range, the bound is loose
+	 * and a factor that forces the rebuild is returned.
+	 *
+	 * @return Factor, 0 if the current distance can't be bounded.
+	 * @throws Exception if the ranges could not be computed.
+	 */
+	private double lowerScale() throws Exception {
+		double[][] ranges;
+		double width, treeWidth, scale = MAX_SCALE;
+
+		if (mTree == null)
+			return 1;
+
+		ranges = ((NormalizableDistance) m_DistanceFunction).getRanges();
+
+		for (int i = 0; i < m_Instances.numAttributes(); i++) {
+			if (i == m_Instances.classIndex() ||
+			      !m_Instances.attribute(i).isNumeric())
+				continue;
+
+			width = ranges[i][NormalizableDistance.R_WIDTH];
+			treeWidth = mTreeRanges[i][NormalizableDistance.R_WIDTH];
+
+			if (Double.isNaN(treeWidth) || treeWidth == 0) {
+				if (!Double.isNaN(width) && width > 0)
+					return 1 / (2 * MAX_SCALE);
+
+				continue;
+			}
+
+			if (Double.isNaN(width) || width == 0 ||
+			      treeWidth / width > MAX_SCALE)
+				return 1 / (2 * MAX_SCALE);
+
+			scale = Math.min(scale, treeWidth / width);
+		}
+
+		return scale;
+	}
+
+	/**
+	 * Builds the tree over the instances, freezing the current ranges.
+	 *
+	 * @throws Exception if the ranges could not be computed.
+	 */
+	private void buildTree() throws Exception {
+		double[][] ranges;
+		double width;
+		int num = 0;
+
+		ranges = ((NormalizableDistance) m_DistanceFunction).getRanges();
+		mTreeRanges = new double[ranges.length][];
+		mTreeAtts = new int[m_Instances.numAttributes()];
+
+		// An attribute without range adds nothing to the distance.
+		for (int i = 0; i < m_Instances.numAttributes(); i++) {
+			mTreeRanges[i] = ranges[i].clone();
+			width = ranges[i][NormalizableDistance.R_WIDTH];
+
+			if (i != m_Instances.classIndex() &&
+			      m_Instances.attribute(i).isNumeric() &&
+			      !Double.isNaN(width) && width > 0)
+				mTreeAtts[num++] = i;
+		}
+
+		mTreeAtts = Arrays.copyOf(mTreeAtts, num);
+		mEntries = new IdentityHashMap<Instance, TreeEntry>();
+		mTree = new MTree<TreeEntry>(new TreeDistance(),
+		                             MIN_CAPACITY, MAX_CAPACITY);
+
+		for (int i = 0; i < m_Instances.numInstances(); i++)
+			addToIndex(m_Instances.instance(i));
+	}
+
+	/**
+	 * Entry of the tree: an instance and its values normalized with the
+	 * frozen ranges.
+	 */
+	private class TreeEntry implements Serializable {
+
+		private static final long serialVersionUID = 2904718365549380123L;
+
+		/**
+		 * Instance.
+		 */
+		private Instance mInst;
+
+		/**
+		 * Normalized values of the attributes of the tree.
+		 */
+		private double[] mCoords;
+
+		public TreeEntry(Instance inst) {
+			int att;
+
+			mInst = inst;
+			mCoords = new double[mTreeAtts.length];
+
+			for (int i = 0; i < mTreeAtts.length; i++) {
+				att = mTreeAtts[i];
+				mCoords[i] = (inst.value(att) -
+				                mTreeRanges[att][NormalizableDistance.R_MIN]) /
+				              mTreeRanges[att][NormalizableDistance.R_WIDTH];
+			}
+		}
+	}
+
+	/**
+	 * Euclidean distance between the normalized values of two entries.
+	 */
+	private static class TreeDistance implements Distance<TreeEntry> {
+
+		private static final long serialVersionUID = -1316048225637707415L;
+
+		public double distance(TreeEntry entry1, TreeEntry entry2) {
+			double diff, sum = 0;
+
+			for (int i = 0; i < entry1.mCoords.length; i++) {
+				diff = entry1.mCoords[i] - entry2.mCoords[i];
+				sum += diff * diff;
+			}
+
+			return Math.sqrt(sum);
+		}
+	}
+}
@@ -0,0 +1,512 @@
+/*
+ * RingBufferWindow.java
+ * Copyright (C) 2016 Burgos University, Spain
+ * @author Álvar Arnaiz-González
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package moa.classifiers.lazy.neighboursearch;
+
+import java.io.Serializable;
+
+import com.yahoo.labs.samoa.instances.Instance;
+import com.yahoo.labs.samoa.instances.Instances;
+
+/**
+ * Fixed-capacity sliding window stored as a ring buffer of primitive
+ * values, one column per attribute, plus the class labels.
+ * <p>
+ * Inserting and evicting are O(1). The nearest neighbour search is a linear
+ * scan over the columns that uses the same normalized euclidean distance as
+ * LinearNNSearch (ranges computed over the window) and, as LinearNNSearch,
+ * also returns the instances tied with the k-th nearest one.
+ * <p>
+ * Once the ranges are updated, several threads can search the window at the
+ * same time with addVotesConcurrently, while it is not modified.
+ *
+ * @author Álvar Arnaiz-González
+ * @version 20160615
+ */
+public class RingBufferWindow implements Serializable {
+
+	private static final long serialVersionUID = -3419307335734720385L;
+
+	/**
+	 * Initial length of the arrays, they grow until the capacity.
+	 */
+	private static final int INITIAL_LENGTH = 64;
+
+	/**
+	 * Values of the window: one column per attribute (class excluded).
+	 */
+	private double[][] mValues;
+
+	/**
+	 * Class values of the window.
+	 */
+	private double[] mClasses;
+
+	/**
+	 * Index in the instance of the attribute stored in each column.
+	 */
+	private int[] mAttIndex;
+
+	/**
+	 * Whether the attribute of each column is nominal.
+	 */
+	private boolean[] mNominal;
+
+	/**
+	 * Minimum value of each column. NaN if there is no value.
+	 */
+	private double[] mMin;
+
+	/**
+	 * Maximum value of each column. NaN if there is no value.
+	 */
+	private double[] mMax;
+
+	/**
+	 * True if an extreme value has been evicted and the ranges must be
+	 * recomputed.
+	 */
+	private boolean mRangesOutdated;
+
+	/**
+	 * Distances (squared) computed by the last search.
+	 */
+	private double[] mDistances;
+
+	/**
+	 * Max-heap used to find the k-th nearest distance.
+	 */
+	private double[] mHeap;
+
+	/**
+	 * Maximum number of instances in the window.
+	 */
+	private int mCapacity;
+
+	/**
+	 * Position of the oldest instance.
+	 */
+	private int mHead;
+
+	/**
+	 * Number of instances in the window.
+	 */
+	private int mSize;
+
+	/**
+	 * Creates an empty window.
+	 *
+	 * @param data Dataset with the information of attributes and class.
+	 * @param capacity Maximum number of instances in the window.
+	 */
+	public RingBufferWindow(Instances data, int capacity) {
+		int numCols = data.numAttributes() - 1;
+		int length;
+
+		mCapacity = Math.max(1, capacity);
+		length = Math.min(mCapacity, INITIAL_LENGTH);
+
+		mAttIndex = new int[numCols];
+		mNominal = new boolean[numCols];
+		mMin = new double[numCols];
+		mMax = new double[numCols];
+		mValues = new double[numCols][length];
+		mClasses = new double[length];
+		mDistances = new double[length];
+
+		for (int i = 0, j = 0; i < data.numAttributes(); i++) {
+			if (i != data.classIndex()) {
+				mAttIndex[j] = i;
+				mNominal[j] = data.attribute(i).isNominal();
+				mMin[j] = Double.NaN;
+				mMax[j] = Double.NaN;
+				j++;
+			}
+		}
+	}
+
+	/**
+	 * Adds an instance to the window. If the window is full the oldest
+	 * instance is evicted.
+	 *
+	 * @param inst Instance to add.
+	 */
+	public void add(Instance inst) {
+		int pos;
+
+		if (mSize == mCapacity) {
+			evictOldest();
+		} else if (mSize == mClasses.length) {
+			grow();
+		}
+
+		pos = (mHead + mSize) % mClasses.length;
+
+		for (int j = 0; j < mAttIndex.length; j++) {
+			if (inst.isMissing(mAttIndex[j]))
+				mValues[j][pos] = Double.NaN;
+			else
+				mValues[j][pos] = inst.value(mAttIndex[j]);
+
+			updateRange(j, mValues[j][pos]);
+		}
+
+		mClasses[pos] = inst.classValue();
+		mSize++;
+	}
+
+	/**
+	 * Evicts the oldest instance of the window.
+	 */
+	public void evictOldest() {
+		double val;
+
+		if (mSize == 0)
+			return;
+
+		for (int j = 0; j < mAttIndex.length; j++) {
+			val = mValues[j][mHead];
+
+			if (val == mMin[j] || val == mMax[j])
+				mRangesOutdated = true;
+		}
+
+		mHead = (mHead + 1) % mClasses.length;
+		mSize--;
+	}
+
+	/**
+	 * Returns the number of instances in the window.
+	 *
+	 * @return Number of instances.
+	 */
+	public int size() {
+
+		return mSize;
+	}
+
+	/**
+	 * Returns the maximum number of instances of the window.
+	 *
+	 * @return Capacity of the window.
+	 */
+	public int capacity() {
+
+		return mCapacity;
+	}
+
+	/**
+	 * Empties the window.
+	 */
+	public void clear() {
+		mHead = 0;
+		mSize = 0;
+
+		for (int j = 0; j < mAttIndex.length; j++) {
+			mMin[j] = Double.NaN;
+			mMax[j] = Double.NaN;
+		}
+
+		mRangesOutdated = false;
+	}
+
+	/**
+	 * Adds to votes one vote for the class of each of the k nearest
+	 * neighbours of target (and of those tied with the k-th one).
+	 *
+	 * @param target Instance to classify.
+	 * @param k Number of neighbours.
+	 * @param votes Array where the votes are accumulated.
+	 */
+	public void addVotes(Instance target, int k, double[] votes) {
+		if (mSize == 0 || k <= 0)
+			return;
+
+		if (mRangesOutdated)
+			recomputeRanges();
+
+		if (mHeap == null || mHeap.length < Math.min(k, mSize))
+			mHeap = new double[Math.min(k, mSize)];
+
+		addVotes(target, k, votes, mDistances, mHeap);
+	}
+
+	/**
+	 * Same as addVotes, but the search doesn't modify the window: several
+	 * threads can call it at the same time. The ranges must have been
+	 * updated before (see updateRanges).
+	 *
+	 * @param target Instance to classify.
+	 * @param k Number of neighbours.
+	 * @param votes Array where the votes are accumulated.
+	 */
+	public void addVotesConcurrently(Instance target, int k, double[] votes) {
+		if (mSize == 0 || k <= 0)
+			return;
+
+		addVotes(target, k, votes, new double[mSize],
+		         new double[Math.min(k, mSize)]);
+	}
+
+	/**
+	 * Recomputes the ranges if some extreme value has been evicted.
+	 */
+	public void updateRanges() {
+		if (mRangesOutdated)
+			recomputeRanges();
+	}
+
+	/**
+	 * Adds the votes of the nearest neighbours using the arrays received.
+	 *
+	 * @param target Instance to classify.
+	 * @param k Number of neighbours.
+	 * @param votes Array where the votes are accumulated.
+	 * @param distances Array for the distances, at least of the size.
+	 * @param heap Array for the heap, at least of min(k, size).
+	 */
+	private void addVotes(Instance target, int k, double[] votes,
+	                       double[] distances, double[] heap) {
+		double kthDist;
+		int pos;
+
+		computeDistances(target, distances);
+		kthDist = kthDistance(Math.min(k, mSize), distances, heap);
+
+		for (int i = 0; i < mSize; i++) {
+			if (distances[i] <= kthDist) {
+				pos = (mHead + i) % mClasses.length;
+				votes[(int) mClasses[pos]]++;
+			}
+		}
+	}
+
+	/**
+	 * Computes the squared distances from target to every instance of the
+	 * window, column by column. distances[i] is the distance to the i-th
+	 * oldest instance.
+	 *
+	 * @param target Instance.
+	 * @param distances Array for the distances.
+	 */
+	private void computeDistances(Instance target, double[] distances) {
+		double[] column;
+		double val, diff, min, width;
+		int pos, first;
+
+		for (int i = 0; i < mSize; i++)
+			distances[i] = 0;
+
+		for (int j = 0; j < mAttIndex.length; j++) {
+			column = mValues[j];
+			min = mMin[j];
+			width = mMax[j] - mMin[j];
+
+			if (target.isMissing(mAttIndex[j]))
+				val = Double.NaN;
+			else
+				val = target.value(mAttIndex[j]);
+
+			// Positions of the window in the ring: [mHead, end) and [0, rest).
+			first = Math.min(mSize, column.length - mHead);
+
+			for (int i = 0; i < mSize; i++) {
+				pos = i < first ? mHead + i : i - first;
+				diff = difference(j, val, column[pos], min, width);
+				distances[i] += diff * diff;
+			}
+		}
+	}
+
+	/**
+	 * Returns the difference between two values of a column, as
+	 * NormalizableDistance does.
+	 *
+	 * @param col Column.
+	 * @param val1 First value.
+	 * @param val2 Second value.
+	 * @param min Minimum of the column.
+	 * @param width Width of the column.
+	 * @return Difference.
+	 */
+	private double difference(int col, double val1, double val2, double min,
+	                           double width) {
+		double diff;
+
+		if (mNominal[col]) {
+			if (Double.isNaN(val1) || Double.isNaN(val2) ||
+			      (int) val1 != (int) val2)
+				return 1;
+
+			return 0;
+		}
+
+		if (Double.isNaN(val1) || Double.isNaN(val2)) {
+			if (Double.isNaN(val1) && Double.isNaN(val2))
+				return 1;
+
+			if (Double.isNaN(val2))
+				diff = norm(val1, min, width);
+			else
+				diff = norm(val2, min, width);
+
+			if (diff < 0.5)
+				diff = 1.0 - diff;
+
+			return diff;
+		}
+
+		return norm(val1, min, width) - norm(val2, min, width);
+	}
+
+	/**
+	 * Normalizes a value with the range of its column.
+	 *
+	 * @param x Value.
+	 * @param min Minimum of the column.
+	 * @param width Width of the column.
+	 * @return Normalized value.
+	 */
+	private double norm(double x, double min, double width) {
+		if (Double.isNaN(min) || width == 0)
+			return 0;
+
+		return (x - min) / width;
+	}
+
+	/**
+	 * Returns the k-th smallest distance computed.
+	 *
+	 * @param k Number of neighbours, lower or equal than the size.
+	 * @param distances Distances computed.
+	 * @param heap Array for the heap, at least of length k.
+	 * @return The k-th smallest distance.
+	 */
+	private double kthDistance(int k, double[] distances, double[] heap) {
+		double d, tmp;
+		int child, parent;
+
+		for (int i = 0; i < mSize; i++) {
+			d = distances[i];
+
+			if (i < k) {
+				// Sift up.
+				heap[i] = d;
+				child = i;
+
+				while (child > 0) {
+					parent = (child - 1) / 2;
+
+					if (heap[parent] >= heap[child])
+						break;
+
+					tmp = heap[parent];
+					heap[parent] = heap[child];
+					heap[child] = tmp;
+					child = parent;
+				}
+			} else if (d < heap[0]) {
+				// Sift down.
+				heap[0] = d;
+				parent = 0;
+
+				while ((child = 2 * parent + 1) < k) {
+					if (child + 1 < k && heap[child + 1] > heap[child])
+						child++;
+
+					if (heap[parent] >= heap[child])
+						break;
+
+					tmp = heap[parent];
+					heap[parent] = heap[child];
+					heap[child] = tmp;
+					parent = child;
+				}
+			}
+		}
+
+		return heap[0];
+	}
+
+	/**
+	 * Updates the range of a column with a new value.
+	 *
+	 * @param col Column.
+	 * @param val Value.
+	 */
+	private void updateRange(int col, double val) {
+		if (Double.isNaN(val))
+			return;
+
+		if (Double.isNaN(mMin[col])) {
+			mMin[col] = val;
+			mMax[col] = val;
+		} else if (val < mMin[col]) {
+			mMin[col] = val;
+		} else if (val > mMax[col]) {
+			mMax[col] = val;
+		}
+	}
+
+	/**
+	 * Recomputes the ranges of all the columns from the window.
+	 */
+	private void recomputeRanges() {
+		for (int j = 0; j < mAttIndex.length; j++) {
+			mMin[j] = Double.NaN;
+			mMax[j] = Double.NaN;
+
+			for (int i = 0; i < mSize; i++)
+				updateRange(j, mValues[j][(mHead + i) % mClasses.length]);
+		}
+
+		mRangesOutdated = false;
+	}
+
+	/**
+	 * Doubles the length of the arrays (up to the capacity). The instances
+	 * are unwrapped, so the oldest one is placed at the first position.
+	 */
+	private void grow() {
+		int length = (int) Math.min((long) mCapacity, 2L * mClasses.length);
+
+		for (int j = 0; j < mValues.length; j++)
+			mValues[j] = unwrap(mValues[j], length);
+
+		mClasses = unwrap(mClasses, length);
+		mDistances = new double[length];
+		mHead = 0;
+	}
+
+	/**
+	 * Copies the instances of a ring to a new array, oldest first.
+	 *
+	 * @param ring Array of the ring.
+	 * @param length Length of the new array.
+	 * @return The new array.
+	 */
+	private double[] unwrap(double[] ring, int length) {
+		double[] tmp = new double[length];
+		int first = Math.min(mSize, ring.length - mHead);
+
+		System.arraycopy(ring, mHead, tmp, 0, first);
+		System.arraycopy(ring, 0, tmp, first, mSize - first);
+
+		return tmp;
+	}
+}
@@ -0,0 +1,200 @@
+/*
+ * RingInstances.java
+ * Copyright (C) 2016 Burgos University, Spain
+ * @author Álvar Arnaiz-González
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package moa.classifiers.lazy.neighboursearch;
+
+import java.io.Serializable;
+import java.util.AbstractList;
+import java.util.RandomAccess;
+
+import com.yahoo.labs.samoa.instances.Instance;
+import com.yahoo.labs.samoa.instances.Instances;
+
+/**
+ * Dataset whose instances are stored in a ring buffer, so that deleting the
+ * first instance (the oldest one of a sliding window) is O(1) instead of
+ * shifting the whole list. Adding at the end and accessing by position are
+ * O(1) too; deleting other positions shifts the shorter side.
+ *
+ * @author Álvar Arnaiz-González
+ * @version 20160701
+ */
+public class RingInstances extends Instances {
+
+	private static final long serialVersionUID = 4108379262619730781L;
+
+	/**
+	 * Creates an empty dataset with the attributes of another one.
+	 *
+	 * @param header Dataset with the information of the attributes.
+	 */
+	public RingInstances(Instances header) {
+		super(header, 0);
+		instances = new RingList<Instance>();
+	}
+
+	/**
+	 * List stored in a circular array that doubles its length when full.
+	 */
+	private static class RingList<E> extends AbstractList<E>
+	                                  implements RandomAccess, Serializable {
+
+		private static final long serialVersionUID = -5236404167524512817L;
+
+		/**
+		 * Initial length of the array.
+		 */
+		private static final int INITIAL_LENGTH = 64;
+
+		/**
+		 * Elements, the first one at mHead.
+		 */
+		private Object[] mElements = new Object[INITIAL_LENGTH];
+
+		/**
+		 * Position of the first element.
+		 */
+		private int mHead;
+
+		/**
+		 * Number of elements.
+		 */
+		private int mSize;
+
+		@Override
+		@SuppressWarnings("unchecked")
+		public E get(int index) {
+			checkIndex(index);
+
+			return (E) mElements[position(index)];
+		}
+
+		@Override
+		@SuppressWarnings("unchecked")
+		public E set(int index, E element) {
+			E old;
+
+			checkIndex(index);
+			old = (E) mElements[position(index)];
+			mElements[position(index)] = element;
+
+			return old;
+		}
+
+		@Override
+		public int size() {
+			return mSize;
+		}
+
+		@Override
+		public void add(int index, E element) {
+			if (index < 0 || index > mSize)
+				throw new IndexOutOfBoundsException("Index: " + index +
+				                                    ", Size: " + mSize);
+
+			if (mSize == mElements.length)
+				grow();
+
+			if (index < mSize - index) {
+				mHead = (mHead - 1 + mElements.length) % mElements.length;
+
+				for (int i = 0; i < index; i++)
+					mElements[position(i)] = mElements[position(i + 1)];
+			} else {
+				for (int i = mSize; i > index; i--)
+					mElements[position(i)] = mElements[position(i - 1)];
+			}
+
+			mElements[position(index)] = element;
+			mSize++;
+			modCount++;
+		}
+
+		@Override
+		@SuppressWarnings("unchecked")
+		public E remove(int index) {
+			E old;
+
+			checkIndex(index);
+			old = (E) mElements[position(index)];
+
+			if (index < mSize - 1 - index) {
+				for (int i = index; i > 0; i--)
+					mElements[position(i)] = mElements[position(i - 1)];
+
+				mElements[mHead] = null;
+				mHead = (mHead + 1) % mElements.length;
+			} else {
+				for (int i = index; i < mSize - 1; i++)
+					mElements[position(i)] = mElements[position(i + 1)];
+
+				mElements[position(mSize - 1)] = null;
+			}
+
+			mSize--;
+			modCount++;
+
+			return old;
+		}
+
+		@Override
+		public void clear() {
+			mElements = new Object[INITIAL_LENGTH];
+			mHead = 0;
+			mSize = 0;
+			modCount++;
+		}
+
+		/**
+		 * Returns the position in the array of an element.
+		 *
+		 * @param index Index of the element in the list.
+		 * @return Position in the array.
+		 */
+		private int position(int index) {
+			int pos = mHead + index;
+
+			return pos < mElements.length ? pos : pos - mElements.length;
+		}
+
+		/**
+		 * Checks that an index is inside the list.
+		 *
+		 * @param index Index.
+		 */
+		private void checkIndex(int index) {
+			if (index < 0 || index >= mSize)
+				throw new IndexOutOfBoundsException("Index: " + index +
+				                                    ", Size: " + mSize);
+		}
+
+		/**
+		 * Doubles the length of the array, moving the first element to the
+		 * first position.
+		 */
+		private void grow() {
+			Object[] elements = new Object[mElements.length * 2];
+
+			for (int i = 0; i < mSize; i++)
+				elements[i] = mElements[position(i)];
+
+			mElements = elements;
+			mHead = 0;
+		}
+	}
+}
@@ -18,7 +18,11 @@
  */
 package moa.classifiers.lazy;
 
+import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import com.github.javacliparser.FloatOption;
 import com.github.javacliparser.IntOption;
@@ -30,8 +34,10 @@ import com.yahoo.labs.samoa.instances.InstancesHeader;
 import moa.classifiers.AbstractClassifier;
 import moa.classifiers.lazy.neighboursearch.EuclideanDistance;
 import moa.classifiers.lazy.neighboursearch.LinearNNGranuleSearch;
-import moa.classifiers.lazy.neighboursearch.NearestNeighbourSearch;
+import moa.classifiers.lazy.neighboursearch.NormalizableDistance;
 import moa.core.Measurement;
+import utils.indexstructure.Distance;
+import utils.indexstructure.MTree;
 
 /**
  * Implementation of oi-GRLVQ. Presented in: 
@@ -43,11 +49,18 @@ import moa.core.Measurement;
  * Notes:
  * <p>
  * Only works with numeric attributes. <br>
+ * The granules of each class are kept in a metric tree (M-tree), which 
+ * answers the queries of the nearest granule of the same and of other 
+ * class. The trees are updated when a granule is added or moved, and 
+ * rebuilt after the pruning. The granules with missing values are kept out
+ * of the trees and checked one by one. <br>
+ * The nearest granules of the instances of the mini-batch can be searched 
+ * in parallel (-p). <br>
  * <p>
  * Valid options are:
  * 
  * @author Álvar Arnaiz-González
- * @version 20160525
+ * @version 20160701
  */
 public class oiGRLVQ extends AbstractClassifier {
 
@@ -68,6 +81,16 @@ public class oiGRLVQ extends AbstractClassifier {
 	public IntOption mDesiredReduction = new IntOption("desiredReduction", 'r', 
 	        "Desired reduction per class (for pruning)", 25, 0, 100);
 
+	public IntOption mNumThreads = new IntOption("numThreads", 'p',
+	        "Number of threads to update the relevances with the mini-batch, 0 for all the processors",
+	        1, 0, Integer.MAX_VALUE);
+
+	/**
+	 * Number of instances of the mini-batch of each task of the parallel
+	 * update of the relevances.
+	 */
+	private static final int RELEVANCE_CHUNK = 32;
+
 	/**
 	 * Euclidean distance for computations.
 	 */
@@ -108,6 +131,61 @@ public class oiGRLVQ extends AbstractClassifier {
 	 */
 	private double[] mRelTerms;
 	
+	/**
+	 * Euclidean distance normalized with the ranges of the mini-batch, for
+	 * the predictions.
+	 */
+	private EuclideanDistance mNormDist;
+	
+	/**
+	 * Search over all the granules with the euclidean distance (not 
+	 * normalized), for the instances with missing values.
+	 */
+	private LinearNNGranuleSearch mSearch;
+	
+	/**
+	 * Search over all the granules with the normalized distance, for the
+	 * predictions that the trees can't answer.
+	 */
+	private LinearNNGranuleSearch mNormSearch;
+	
+	/**
+	 * Metric tree of the granules (without missing values) of each class.
+	 */
+	private ArrayList<MTree<IndexEntry>> mIndexes;
+	
+	/**
+	 * Granules with missing values: they are not in the trees.
+	 */
+	private ArrayList<Granule> mMissingGranules;
+	
+	/**
+	 * Granules of each class sorted by their frequency usage, for the 
+	 * pruning.
+	 */
+	private ArrayList<UsageHeap> mUsageHeaps;
+	
+	/**
+	 * If each attribute is nominal.
+	 */
+	private boolean[] mNominal;
+	
+	/**
+	 * Index of the class attribute.
+	 */
+	private int mClassIndex;
+	
+	/**
+	 * Identifier of the next granule: the granules are sorted by it in the 
+	 * list.
+	 */
+	private long mNextId;
+	
+	/**
+	 * Pool of threads for the update of the relevances.
+	 */
+	private transient ForkJoinPool mPool;
+	
 	@Override
 	public boolean isRandomizable() {
 		
@@ -116,14 +194,17 @@ public class oiGRLVQ extends AbstractClassifier {
 
 	@Override
 	public double[] getVotesForInstance(Instance inst) {
-		NearestNeighbourSearch search;
 		double v[] = new double[inst.numClasses()];
 		
 		try {
-			if (mGranules != null) {	
-				search = new LinearNNGranuleSearch(mGranules, mMiniBatch);  
-				Instance neighbours = search.nearestNeighbour(inst);
-				v[(int)neighbours.classValue()]++;
+			if (mGranules != null && !mGranules.isEmpty()) {
+				if (mNormDist == null || mNormDist.getInstances() != mMiniBatch) {
+					mNormDist = new EuclideanDistance(mMiniBatch);
+					mNormSearch = new LinearNNGranuleSearch(mGranules, mMiniBatch);
+					mNormSearch.setDistanceFunction(mNormDist);
+				}
+				
+				v[nearestGranule(inst).classValue()]++;
 			}
 		} catch(Exception e) {
 			return new double[inst.numClasses()];
@@ -131,6 +212,99 @@ public class oiGRLVQ extends AbstractClassifier {
 		
 		return v;
 	}
+	
+	/**
+	 * Returns the nearest granule to the instance with the euclidean 
+	 * distance normalized with the ranges of the mini-batch; among those at
+	 * the same distance, the first one.<br>
+	 * The normalized distance is bounded by the one of the trees scaled by 
+	 * the inverse of the maximum width, so it is only computed for the 
+	 * granules of the trees within the distance of the nearest one found
+	 * divided by that factor. If the ranges can't bound the distance, all 
+	 * the granules are checked.
+	 * 
+	 * @param inst Instance.
+	 * @return Nearest granule.
+	 * @throws Exception if the ranges could not be computed.
+	 */
+	private Granule nearestGranule(Instance inst) throws Exception {
+		double[][] ranges = mNormDist.getRanges();
+		double scale = 1, width, dist, radius, bestDist = Double.POSITIVE_INFINITY;
+		IndexEntry query;
+		Granule best = null;
+		
+		for (int i = 0; i < inst.numAttributes() && scale > 0; i++) {
+			if (i == inst.classIndex() || mNominal[i])
+				continue;
+			
+			width = ranges[i][NormalizableDistance.R_WIDTH];
+			
+			if (width > 0 && !Double.isInfinite(width))
+				scale = Math.min(scale, 1 / width);
+			else
+				scale = 0;
+		}
+		
+		// Check all the granules.
+		if (scale == 0 || hasMissing(inst))
+			return mGranules.get(mNormSearch.nearestGranule(inst));
+		
+		query = new IndexEntry(null, inst);
+		
+		// Nearest granule of the trees.
+		for (MTree<IndexEntry> tree : mIndexes) {
+			radius = tree.nearestDistance(query);
+			
+			if (Double.isInfinite(radius))
+				continue;
+			
+			for (IndexEntry entry : tree.rangeQuery(query, radius * (1 + 1e-9) + 1e-12)) {
+				Granule gran = entry.mGranule;
+				
+				dist = mNormDist.distance(inst, gran.instance(), 
+				                          Double.POSITIVE_INFINITY);
+				
+				if (best == null || dist < bestDist || 
+				      (dist == bestDist && gran.mId < best.mId)) {
+					bestDist = dist;
+					best = gran;
+				}
+			}
+		}
+		
+		for (Granule gran : mMissingGranules) {
+			dist = mNormDist.distance(inst, gran.instance(), 
+			                          Double.POSITIVE_INFINITY);
+			
+			if (best == null || dist < bestDist || 
+			      (dist == bestDist && gran.mId < best.mId)) {
+				bestDist = dist;
+				best = gran;
+			}
+		}
+		
+		if (best == null || mMissingGranules.size() == mGranules.size())
+			return best;
+		
+		// Granules of the trees that can be nearer than the best one.
+		radius = Math.sqrt(bestDist) / scale;
+		
+		for (MTree<IndexEntry> tree : mIndexes) {
+			for (IndexEntry entry : tree.rangeQuery(query, radius * (1 + 1e-9) + 1e-12)) {
+				Granule gran = entry.mGranule;
+				
+				dist = mNormDist.distance(inst, gran.instance(), 
+				                          Double.POSITIVE_INFINITY);
+				
+				if (dist < bestDist || (dist == bestDist && gran.mId < best.mId)) {
+					bestDist = dist;
+					best = gran;
+				}
+			}
+		}
+		
+		return best;
+	}
 
 	@Override
 	public void resetLearningImpl() {
@@ -139,6 +313,12 @@ public class oiGRLVQ extends AbstractClassifier {
 		mRelTerms = null;
 		mInitGranules = false;
 		mInstancesRead = 0;
+		mNormDist = null;
+		mSearch = null;
+		mNormSearch = null;
+		mIndexes = null;
+		mMissingGranules = null;
+		mUsageHeaps = null;
 	}
 
 	@Override
@@ -152,8 +332,18 @@ public class oiGRLVQ extends AbstractClassifier {
 			mMiniBatch = new Instances(inst.dataset(), 
 			                  mInstsPerBatch.getValue());
 		
-		if (mGranules == null)
+		if (mGranules == null) {
 			mGranules = new ArrayList<>();
+			initIndexes(inst.dataset());
+			
+			try {
+				mSearch = new LinearNNGranuleSearch(mGranules, mMiniBatch);
+				mSearch.setDistanceFunction(mEucDist);
+			} catch (Exception e) {
+				System.err.println("Error: granules' search.");
+				e.printStackTrace();
+			}
+		}
 			
 		if (mRelTerms == null) {
 			mRelTerms = new double[inst.numAttributes() - 1];
@@ -167,6 +357,7 @@ public class oiGRLVQ extends AbstractClassifier {
 		// Add the new instance.
 		mInstancesRead++;
 		mMiniBatch.add(inst);
+		updateNormDist(inst);
 		updateDifferences(inst);
 		
 		// Initialization step: one granule per class.
@@ -199,6 +390,35 @@ public class oiGRLVQ extends AbstractClassifier {
 //			pruning ();
 	}
 	
+	/**
+	 * Updates the ranges of the normalized distance with the new instance of
+	 * the mini-batch. The incremental update of the ranges is only valid 
+	 * once each attribute has a value: until then, they are recomputed.
+	 * 
+	 * @param inst New instance of the mini-batch.
+	 */
+	private void updateNormDist(Instance inst) {
+		double[][] ranges;
+		
+		if (mNormDist == null || mNormDist.getInstances() != mMiniBatch)
+			return;
+		
+		try {
+			ranges = mNormDist.getRanges();
+			
+			for (int i = 0; i < ranges.length; i++) {
+				if (Double.isInfinite(ranges[i][NormalizableDistance.R_MIN])) {
+					mNormDist.setInstances(mMiniBatch);
+					return;
+				}
+			}
+			
+			mNormDist.update(inst);
+		} catch (Exception e) {
+			mNormDist = null;
+		}
+	}
+	
 	/**
 	 * Check if the instance should be added as a new granule.
 	 * 
@@ -211,7 +431,7 @@ public class oiGRLVQ extends AbstractClassifier {
 		
 		// Add a new granule if doesn't exist a granule of the inst's class.
 		if (classes[(int)inst.classValue()] == 0) {
-			mGranules.add(new Granule(inst));
+			addGranule(new Granule(inst));
 			classes[(int)inst.classValue()]++;
 		}
 		
@@ -245,81 +465,172 @@ public class oiGRLVQ extends AbstractClassifier {
 	 */
 	private void onlineLearning(Instance inst) {
 		double[] distPosNeg = new double[2];
-		int[] indexPosNeg = new int[2];
+		Granule[] posNeg = new Granule[2];
 		
 		// Find the nearest granules.
-		findNearestGranules(inst, indexPosNeg, distPosNeg);
+		findNearestGranules(inst, posNeg, distPosNeg);
 		
 		// Update existing granules.
-		if (mGranules.get(indexPosNeg[0]).similarity(inst, mInstancesRead) > mP) {
-			mGranules.get(indexPosNeg[0]).updateWeights(inst, mCurrLearnRate, true);
-			mGranules.get(indexPosNeg[1]).updateWeights(inst, mCurrLearnRate, false);
+		if (posNeg[0].similarity(inst, mInstancesRead) > mP) {
+			// The granules move: take them out of the trees meanwhile.
+			removeFromIndex(posNeg[0]);
+			removeFromIndex(posNeg[1]);
+			
+			posNeg[0].updateWeights(inst, mCurrLearnRate, true);
+			posNeg[1].updateWeights(inst, mCurrLearnRate, false);
 			
-			mGranules.get(indexPosNeg[0]).addFreqUsage ();
-			mGranules.get(indexPosNeg[1]).addFreqUsage ();
+			addToIndex(posNeg[0]);
+			addToIndex(posNeg[1]);
+			
+			posNeg[0].addFreqUsage ();
+			posNeg[1].addFreqUsage ();
 			
 			mCurrLearnRate -= mLearningDec.getValue();
 		}
 		// Add new granule.
 		else {
-			mGranules.add(new Granule(inst));
+			addGranule(new Granule(inst));
 		}
 	}
 	
+	/**
+	 * Adds a new granule at the end of the list, to the trees and to the 
+	 * heap of its class.
+	 * 
+	 * @param gran New granule.
+	 */
+	private void addGranule(Granule gran) {
+		gran.mId = mNextId++;
+		mGranules.add(gran);
+		addToIndex(gran);
+		mUsageHeaps.get(gran.classValue()).add(gran);
+	}
+	
 	/**
 	 * Computes the instances' nearest granules of the same and distinct 
 	 * class and their distances.
 	 * 
+	 * Among those at the same distance, the first one of the list. The 
+	 * granules of the trees are only checked within the distance of the
+	 * nearest one of each tree; if the instance has missing values, all the
+	 * granules are checked.
+	 * 
 	 * @param inst Instance.
-	 * @param indexPosNeg Array with the indexes of the nearest granule 
-	 *        of the same[0]/other[1] class.
+	 * @param posNeg Array with the nearest granule of the same[0]/other[1] 
+	 *        class.
 	 * @param distPosNeg Array with distances to the nearest granule
 	 *        of the same[0]/other[1] class.
 	 */
-	private void findNearestGranules (Instance inst, int[] indexPosNeg, 
+	private void findNearestGranules (Instance inst, Granule[] posNeg, 
 	                                   double[] distPosNeg) {
-		double dist;
+		IndexEntry query;
+		double radius;
 		
 		distPosNeg[0] = Double.MAX_VALUE;
 		distPosNeg[1] = Double.MAX_VALUE;
 		
-		// Find the nearest positive/negative granules.
-		for (int i = 0; i < mGranules.size(); i++) {
-			dist = mEucDist.distance(mGranules.get(i).instance(), inst);
-			if (inst.classValue() == mGranules.get(i).classValue()) {
-				if (dist < distPosNeg[0]) {
-					distPosNeg[0] = dist;
-					indexPosNeg[0] = i;
-				}
-			}
-			else {
-				if (dist < distPosNeg[1]) {
-					distPosNeg[1] = dist;
-					indexPosNeg[1] = i;
-				}
+		if (hasMissing(inst)) {
+			int[] indexPosNeg = new int[2];
+			
+			try {
+				mSearch.nearestGranules(inst, indexPosNeg, distPosNeg);
+			} catch (Exception e) {
+				System.err.println("Error: nearest granules.");
+				e.printStackTrace();
 			}
+			
+			for (int k = 0; k < 2; k++)
+				posNeg[k] = indexPosNeg[k] < 0 ? null : mGranules.get(indexPosNeg[k]);
+			
+			return;
+		}
+		
+		query = new IndexEntry(null, inst);
+		
+		// The ties of the tree and the distance can differ by rounding errors.
+		for (MTree<IndexEntry> tree : mIndexes) {
+			radius = tree.nearestDistance(query);
+			
+			if (Double.isInfinite(radius))
+				continue;
+			
+			for (IndexEntry entry : tree.rangeQuery(query, radius * (1 + 1e-9) + 1e-12))
+				checkNearest(inst, entry.mGranule, posNeg, distPosNeg);
+		}
+		
+		for (Granule gran : mMissingGranules)
+			checkNearest(inst, gran, posNeg, distPosNeg);
+	}
+	
+	/**
+	 * Checks if a granule is nearer to the instance than the nearest one 
+	 * found of its class (same or other), or at the same distance but 
+	 * before in the list.
+	 * 
+	 * @param inst Instance.
+	 * @param gran Granule.
+	 * @param posNeg Nearest granule of the same[0]/other[1] class.
+	 * @param distPosNeg Distances to the nearest granule of the 
+	 *        same[0]/other[1] class.
+	 */
+	private void checkNearest (Instance inst, Granule gran, Granule[] posNeg,
+	                           double[] distPosNeg) {
+		double dist = mEucDist.distance(gran.instance(), inst);
+		int k = inst.classValue() == gran.classValue() ? 0 : 1;
+		
+		if (dist < distPosNeg[k] || (dist == distPosNeg[k] && 
+		      posNeg[k] != null && gran.mId < posNeg[k].mId)) {
+			distPosNeg[k] = dist;
+			posNeg[k] = gran;
 		}
 	}
 	
 	/**
 	 * Updates the relevances of the granules with the instances of the
-	 * mini-batch.
+	 * mini-batch. The nearest granules and the update of each instance 
+	 * don't depend on the relevances, so they are computed first (split in
+	 * chunks among several threads); then the updates are applied in the 
+	 * order of the mini-batch, so the result doesn't depend on the number
+	 * of threads.
 	 */
 	private void updateRelevances() {
+		double[] deltas = new double[mMiniBatch.numInstances() * mRelTerms.length];
+		
+		if (numThreads() > 1 && mMiniBatch.numInstances() > RELEVANCE_CHUNK)
+			getPool().invoke(new RelevanceDeltas(deltas, 0, 
+			                                     mMiniBatch.numInstances()));
+		else
+			relevanceDeltas(deltas, 0, mMiniBatch.numInstances());
+		
+		for (int i = 0, k = 0; i < mMiniBatch.numInstances(); i++)
+			for (int j = 0; j < mRelTerms.length; j++, k++)
+				applyDelta(j, deltas[k]);
+		
+		// Normalize to ensure ||lambda|| = 1
+		normRelTer();
+	}
+	
+	/**
+	 * Computes the updates of the relevances for some instances of the 
+	 * mini-batch.
+	 * 
+	 * @param deltas Updates of the relevances of each instance (output).
+	 * @param from First instance of the mini-batch.
+	 * @param to Last instance of the mini-batch (excluded).
+	 */
+	private void relevanceDeltas(double[] deltas, int from, int to) {
 		double[] distPosNeg = new double[2];
-		int[] indexPosNeg = new int[2];
+		Granule[] posNeg = new Granule[2];
 		
-		for (int i = 0; i < mMiniBatch.numInstances(); i++) {
+		for (int i = from; i < to; i++) {
 			// Find the nearest granules.
-			findNearestGranules(mMiniBatch.instance(i), indexPosNeg, distPosNeg);
+			findNearestGranules(mMiniBatch.instance(i), posNeg, distPosNeg);
 
-			// Update their relevances.
-			updateRel(mMiniBatch.instance(i), mGranules.get(indexPosNeg[0]), 
-			            mGranules.get(indexPosNeg[1]), distPosNeg[0], distPosNeg[1]);
+			// Their updates.
+			relevanceDeltas(mMiniBatch.instance(i), posNeg[0], posNeg[1], 
+			                distPosNeg[0], distPosNeg[1], deltas, 
+			                i * mRelTerms.length);
 		}
-		
-		// Normalize to ensure ||lambda|| = 1
-		normRelTer();
 	}
 	
 	/**
@@ -333,6 +644,28 @@ public class oiGRLVQ extends AbstractClassifier {
 	 */
 	public void updateRel(Instance inst, Granule pos, Granule neg,
 	                      double disPos, double disNeg) {
+		double[] deltas = new double[mRelTerms.length];
+		
+		relevanceDeltas(inst, pos, neg, disPos, disNeg, deltas, 0);
+		
+		for (int j = 0; j < mRelTerms.length; j++)
+			applyDelta(j, deltas[j]);
+	}
+	
+	/**
+	 * Computes the updates of the relevance terms for an instance.
+	 * 
+	 * @param inst Instance that triggers the update.
+	 * @param pos Nearest granule of inst of the same class.
+	 * @param neg Nearest granule of inst of the other class.
+	 * @param disPos Distance from inst to pos.
+	 * @param disNeg Distance from inst to neg.
+	 * @param deltas Updates of the relevances (output).
+	 * @param off Position of the update of the first relevance in deltas.
+	 */
+	private void relevanceDeltas(Instance inst, Granule pos, Granule neg,
+	                             double disPos, double disNeg, double[] deltas,
+	                             int off) {
 		double p, n, sqDis;
 
 		sqDis = Math.pow(disPos + disNeg, 2);
@@ -347,14 +680,52 @@ public class oiGRLVQ extends AbstractClassifier {
 				               inst.value(i), neg.value(i)), 2))
 				               / sqDis;
 				
-				// Don't accumulate negative values.
-				mRelTerms[j] = Math.max(0, mRelTerms[j] - (1 * (p - n)) 
-				                           * mLearningRate.getValue());
+				deltas[off + j] = 1 * (p - n);
 				j++;
 			}
 		}
 	}
 	
+	/**
+	 * Applies an update to a relevance term.
+	 * 
+	 * @param j Index of the relevance term.
+	 * @param delta Update.
+	 */
+	private void applyDelta(int j, double delta) {
+		// Don't accumulate negative values.
+		mRelTerms[j] = Math.max(0, mRelTerms[j] - delta * mLearningRate.getValue());
+	}
+	
+	/**
+	 * Returns the number of threads for the update of the relevances.
+	 * 
+	 * @return Number of threads.
+	 */
+	private int numThreads() {
+		if (mNumThreads.getValue() == 0)
+			return Runtime.getRuntime().availableProcessors();
+		
+		return mNumThreads.getValue();
+	}
+
+	/**
+	 * Returns the pool of threads, created the first time it is needed or 
+	 * when the number of threads has changed.
+	 * 
+	 * @return Pool of threads.
+	 */
+	private ForkJoinPool getPool() {
+		if (mPool == null || mPool.getParallelism() != numThreads()) {
+			if (mPool != null)
+				mPool.shutdown();
+			
+			mPool = new ForkJoinPool(numThreads());
+		}
+		
+		return mPool;
+	}
+	
 	/**
 	 * Normalize the relevance term to ensure: ||&lambda;|| = 1.
 	 */
@@ -371,38 +742,169 @@ public class oiGRLVQ extends AbstractClassifier {
 	}
 	
 	/**
-	 * Pruning the granules.
+	 * Pruning the granules: the desired reduction of the least used 
+	 * granules of each class (among those equally used, the newest ones)
+	 * is removed.
 	 */
 	private void pruning () {
-		int[] instPerClass = countInstPerClass(mMiniBatch.numClasses());
-		double[] freqUsage, indexes;
-		int rem;
-		
-		for (int i = 0; i < instPerClass.length; i++) {
-			freqUsage = new double[instPerClass[i]];
-			indexes = new double[instPerClass[i]];
-			
-			for (int j = 0, k = 0; j < mGranules.size(); j++) {
-				if ((int)mGranules.get(j).classValue() == i) {
-					indexes[k] = j;
-					freqUsage[k] = mGranules.get(j).getFreqUsage();
-					k++;
+		Granule gran;
+		int rem, remove;
+		boolean pruned = false;
+		
+		for (UsageHeap heap : mUsageHeaps) {
+			// Desired reduction
+			remove = (heap.size() * mDesiredReduction.getValue()) / 100;
+			rem = heap.size() - remove;
+			
+			if (rem > 0) {
+				for (int j = 0; j < remove; j++) {
+					gran = heap.poll();
+					removeFromIndex(gran);
+					pruned = true;
 				}
 			}
+		}
+		
+		if (!pruned)
+			return;
+		
+		// Compact the list, keeping the order of the granules.
+		rem = 0;
+		for (int i = 0; i < mGranules.size(); i++) {
+			gran = mGranules.get(i);
+			
+			if (gran.mHeapPos >= 0)
+				mGranules.set(rem++, gran);
+		}
+		
+		mGranules.subList(rem, mGranules.size()).clear();
+	}
+	
+	/**
+	 * Creates the empty trees of the granules.
+	 * 
+	 * @param dataset Dataset of the instances.
+	 */
+	private void initIndexes(Instances dataset) {
+		mNominal = new boolean[dataset.numAttributes()];
+		mClassIndex = dataset.classIndex();
+		
+		for (int i = 0; i < mNominal.length; i++)
+			mNominal[i] = i != dataset.classIndex() && 
+			                dataset.attribute(i).isNominal();
+		
+		mIndexes = new ArrayList<MTree<IndexEntry>>(dataset.numClasses());
+		mUsageHeaps = new ArrayList<UsageHeap>(dataset.numClasses());
+		
+		for (int i = 0; i < dataset.numClasses(); i++) {
+			mIndexes.add(newTree());
+			mUsageHeaps.add(new UsageHeap());
+		}
+		
+		mMissingGranules = new ArrayList<Granule>();
+	}
+	
+	/**
+	 * Adds a granule to the tree of its class, or to the granules with 
+	 * missing values. The tree stores a copy of the current center of the 
+	 * granule: its elements are also the centers of the inner nodes, so 
+	 * they must not move.
+	 * 
+	 * @param gran Granule.
+	 */
+	private void addToIndex(Granule gran) {
+		if (hasMissing(gran.instance())) {
+			// The granules are sorted as in the list.
+			int pos = mMissingGranules.size();
 			
-			NearestNeighbourSearch.quickSort(indexes, freqUsage, 0, 
-			                                  freqUsage.length - 1);
+			while (pos > 0 && mMissingGranules.get(pos - 1).mId > gran.mId)
+				pos--;
 			
-			// Desired reduction
-			rem = instPerClass[i] - (instPerClass[i] * 
-			        mDesiredReduction.getValue()) / 100;
+			mMissingGranules.add(pos, gran);
+		}
+		else {
+			gran.mEntry = new IndexEntry(gran, gran.instance());
+			mIndexes.get(gran.classValue()).add(gran.mEntry);
+		}
+	}
+	
+	/**
+	 * Removes a granule from the tree of its class, or from the granules 
+	 * with missing values. If the tree can't find it, it is rebuilt.
+	 * 
+	 * @param gran Granule.
+	 */
+	private void removeFromIndex(Granule gran) {
+		MTree<IndexEntry> tree;
+		List<Granule> grans;
+		
+		if (gran.mEntry == null) {
+			mMissingGranules.remove(gran);
+			return;
+		}
+		
+		tree = mIndexes.get(gran.classValue());
+		
+		if (!tree.remove(gran.mEntry)) {
+			grans = new ArrayList<Granule>();
+			for (Granule other : mGranules)
+				if (other != gran && other.classValue() == gran.classValue() && 
+				      other.mEntry != null)
+					grans.add(other);
 			
-			if (rem > 0) {
-				for (int j = instPerClass[i] - 1; j >= rem; j--) {
-					mGranules.remove((int)indexes[j]);
+			tree = newTree();
+			for (Granule other : grans)
+				tree.add(other.mEntry);
+			
+			mIndexes.set(gran.classValue(), tree);
+		}
+		
+		gran.mEntry = null;
+	}
+	
+	/**
+	 * Creates an empty tree of granules, with the euclidean distance (not
+	 * normalized) of their centers.
+	 * 
+	 * @return Tree.
+	 */
+	private MTree<IndexEntry> newTree() {
+		return new MTree<IndexEntry>(new Distance<IndexEntry>() {
+			private static final long serialVersionUID = 1L;
+			
+			public double distance(IndexEntry entry1, IndexEntry entry2) {
+				double[] values1 = entry1.mValues, values2 = entry2.mValues;
+				double sum = 0, diff;
+				
+				for (int i = 0; i < mNominal.length; i++) {
+					if (i == mClassIndex)
+						continue;
+					
+					if (mNominal[i])
+						diff = (int) values1[i] != (int) values2[i] ? 1 : 0;
+					else
+						diff = values1[i] - values2[i];
+					
+					sum += diff * diff;
 				}
+				
+				return Math.sqrt(sum);
 			}
-		}
+		}, 6, 15);
+	}
+	
+	/**
+	 * Checks if an instance has missing values (but the class).
+	 * 
+	 * @param inst Instance.
+	 * @return True if some attribute is missing.
+	 */
+	private boolean hasMissing(Instance inst) {
+		for (int i = 0; i < inst.numAttributes(); i++)
+			if (i != inst.classIndex() && inst.isMissing(i))
+				return true;
+		
+		return false;
 	}
 
 	@Override
@@ -465,6 +967,23 @@ public class oiGRLVQ extends AbstractClassifier {
 		 */
 		private long mFreqUsage;
 		
+		/**
+		 * Identifier: order of the granule in the list.
+		 */
+		private long mId;
+		
+		/**
+		 * Entry of the granule in the tree of its class, null if it is not
+		 * in the tree.
+		 */
+		private IndexEntry mEntry;
+		
+		/**
+		 * Position of the granule in the heap of its class, -1 if it has 
+		 * been pruned.
+		 */
+		private int mHeapPos = -1;
+		
 		public Granule (Instance inst) {
 			mWeights = new DenseInstance(inst);
 			
@@ -543,6 +1062,9 @@ public class oiGRLVQ extends AbstractClassifier {
 		 */
 		public void addFreqUsage () {
 			mFreqUsage++;
+			
+			if (mHeapPos >= 0)
+				mUsageHeaps.get(classValue()).increased(this);
 		}
 
 		/**
@@ -575,4 +1097,207 @@ public class oiGRLVQ extends AbstractClassifier {
 			return mWeights;
 		}
 	}	
+
+	/**
+	 * Entry of a granule in a tree: a copy of its center when it was added.
+	 */
+	private static class IndexEntry implements Serializable {
+		
+		private static final long serialVersionUID = -2716036466318209474L;
+
+		/**
+		 * Granule, null for the queries.
+		 */
+		private Granule mGranule;
+		
+		/**
+		 * Values of the center of the granule.
+		 */
+		private double[] mValues;
+		
+		public IndexEntry (Granule gran, Instance center) {
+			mGranule = gran;
+			mValues = center.toDoubleArray();
+		}
+	}
+
+	/**
+	 * Indexed min-heap of the granules of a class: the first one is the 
+	 * least used, and among those equally used, the newest. Each granule
+	 * keeps its position in the heap, so it is moved when its frequency
+	 * usage increases.
+	 */
+	private static class UsageHeap implements Serializable {
+		
+		private static final long serialVersionUID = 5176243029868140398L;
+
+		/**
+		 * Granules of the heap.
+		 */
+		private ArrayList<Granule> mHeap = new ArrayList<Granule>();
+		
+		/**
+		 * Returns the number of granules of the heap.
+		 * 
+		 * @return Number of granules.
+		 */
+		public int size () {
+			
+			return mHeap.size();
+		}
+		
+		/**
+		 * Adds a granule.
+		 * 
+		 * @param gran Granule.
+		 */
+		public void add (Granule gran) {
+			mHeap.add(gran);
+			gran.mHeapPos = mHeap.size() - 1;
+			siftUp(gran.mHeapPos);
+		}
+		
+		/**
+		 * Removes and returns the first granule: the least used.
+		 * 
+		 * @return Least used granule.
+		 */
+		public Granule poll () {
+			Granule first = mHeap.get(0), last = mHeap.remove(mHeap.size() - 1);
+			
+			first.mHeapPos = -1;
+			
+			if (last != first) {
+				set(0, last);
+				siftDown(0);
+			}
+			
+			return first;
+		}
+		
+		/**
+		 * Moves a granule whose frequency usage has increased.
+		 * 
+		 * @param gran Granule of the heap.
+		 */
+		public void increased (Granule gran) {
+			siftDown(gran.mHeapPos);
+		}
+		
+		/**
+		 * Moves up the granule of a position while it is before its parent.
+		 * 
+		 * @param pos Position.
+		 */
+		private void siftUp (int pos) {
+			Granule gran = mHeap.get(pos);
+			int parent;
+			
+			while (pos > 0) {
+				parent = (pos - 1) >>> 1;
+				
+				if (!before(gran, mHeap.get(parent)))
+					break;
+				
+				set(pos, mHeap.get(parent));
+				pos = parent;
+			}
+			
+			set(pos, gran);
+		}
+		
+		/**
+		 * Moves down the granule of a position while one of its children is
+		 * before it.
+		 * 
+		 * @param pos Position.
+		 */
+		private void siftDown (int pos) {
+			Granule gran = mHeap.get(pos);
+			int child;
+			
+			while ((child = 2 * pos + 1) < mHeap.size()) {
+				if (child + 1 < mHeap.size() && 
+				      before(mHeap.get(child + 1), mHeap.get(child)))
+					child++;
+				
+				if (!before(mHeap.get(child), gran))
+					break;
+				
+				set(pos, mHeap.get(child));
+				pos = child;
+			}
+			
+			set(pos, gran);
+		}
+		
+		/**
+		 * Puts a granule at a position of the heap.
+		 * 
+		 * @param pos Position.
+		 * @param gran Granule.
+		 */
+		private void set (int pos, Granule gran) {
+			mHeap.set(pos, gran);
+			gran.mHeapPos = pos;
+		}
+		
+		/**
+		 * Checks if a granule goes before another one in the heap: it is 
+		 * less used, or equally used and newer.
+		 * 
+		 * @param gran1 First granule.
+		 * @param gran2 Second granule.
+		 * @return True if the first granule goes before the second one.
+		 */
+		private static boolean before (Granule gran1, Granule gran2) {
+			
+			return gran1.mFreqUsage < gran2.mFreqUsage || 
+			         (gran1.mFreqUsage == gran2.mFreqUsage && gran1.mId > gran2.mId);
+		}
+	}
+
+	/**
+	 * Task that computes the updates of the relevances for a range of 
+	 * instances of the mini-batch, splitting it in chunks.
+	 */
+	private class RelevanceDeltas extends RecursiveAction {
+
+		private static final long serialVersionUID = 8093650237431571386L;
+
+		/**
+		 * Updates of the relevances of each instance.
+		 */
+		private double[] mDeltas;
+
+		/**
+		 * First instance of the range.
+		 */
+		private int mFrom;
+
+		/**
+		 * Last instance of the range (excluded).
+		 */
+		private int mTo;
+
+		public RelevanceDeltas(double[] deltas, int from, int to) {
+			mDeltas = deltas;
+			mFrom = from;
+			mTo = to;
+		}
+
+		@Override
+		protected void compute() {
+			int mid;
+			
+			if (mTo - mFrom > RELEVANCE_CHUNK) {
+				mid = (mFrom + mTo) >>> 1;
+				invokeAll(new RelevanceDeltas(mDeltas, mFrom, mid),
+				          new RelevanceDeltas(mDeltas, mid, mTo));
+				return;
+			}
+			
+			relevanceDeltas(mDeltas, mFrom, mTo);
+		}
+	}
 }
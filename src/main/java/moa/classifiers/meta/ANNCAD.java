@@ -18,7 +18,13 @@
  */
 package moa.classifiers.meta;
 
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.github.javacliparser.IntOption;
 import com.yahoo.labs.samoa.instances.Instance;
@@ -40,9 +46,16 @@ import moa.options.ClassOption;
  * <p>
  * -l base learner (must be always ANNCADTree) <br>
  * -z ensemble size <br>
+ * -p number of threads to run the members <br>
+ * <p>
+ * With several threads, each member has a queue of tasks (instances to
+ * train and to classify) that is run in order by a thread at a time, so
+ * every member sees the instances in the order of the stream. The votes
+ * of the members are added up in the order of the ensemble, so the 
+ * predictions are the same as with a thread.
  * 
  * @author Álvar Arnaiz-González
- * @version 20160520
+ * @version 20160701
  */
 public class ANNCAD extends AbstractClassifier {
 
@@ -54,8 +67,22 @@ public class ANNCAD extends AbstractClassifier {
     public IntOption ensembleSizeOption = new IntOption("ensembleSize", 'z',
              "The number of models to ANNCAD.", 2, 1, Integer.MAX_VALUE);
 
+	public IntOption mNumThreads = new IntOption("numThreads", 'p',
+	         "Number of threads to run the members, 0 for all the processors",
+	         1, 0, Integer.MAX_VALUE);
+
     protected Classifier[] mEnsemble;
 
+	/**
+	 * Queue of tasks of each member, created on demand.
+	 */
+	private transient MemberQueue[] mQueues;
+
+	/**
+	 * Pool of threads to run the members, created on demand.
+	 */
+	private transient ForkJoinPool mPool;
+
 	@Override
 	public boolean isRandomizable() {
 
@@ -65,9 +92,20 @@ public class ANNCAD extends AbstractClassifier {
 	@Override
 	public double[] getVotesForInstance(Instance inst) {
 		double[] tmpV, v = new double[inst.numClasses()];
+		double[][] votes = null;
+		
+		if (numThreads() > 1) {
+			votes = new double[mEnsemble.length][];
+			runOnMembers(inst, votes);
+		}
 		
 		for (int i = 0; i < mEnsemble.length; i++) {
-			tmpV = mEnsemble[i].getVotesForInstance(inst);
+			tmpV = votes == null ? mEnsemble[i].getVotesForInstance(inst) 
+			                     : votes[i];
+			
+			// The member has failed.
+			if (tmpV == null)
+				continue;
 			
 			for (int j = 0; j < tmpV.length; j++)
 				v[j] += tmpV[j];
@@ -80,6 +118,13 @@ public class ANNCAD extends AbstractClassifier {
     public void resetLearningImpl() {
 		Random random = new Random(randomSeed);
 		
+		// The instances pending of the previous members are discarded.
+		if (mQueues != null)
+			for (MemberQueue queue : mQueues)
+				queue.discard();
+		
+		mQueues = null;
+		
         mEnsemble = new ANNCADTree[ensembleSizeOption.getValue()];
         
         Classifier baseLearner = (Classifier)getPreparedClassOption(this.mBaseLearnerOption);
@@ -93,6 +138,16 @@ public class ANNCAD extends AbstractClassifier {
 
 	@Override
 	public void trainOnInstanceImpl(Instance inst) {
+		if (numThreads() > 1) {
+			// The caller may reuse the instance before it is trained.
+			Instance copy = inst.copy();
+			
+			for (int i = 0; i < mEnsemble.length; i++)
+				getQueues()[i].submit(new TrainTask(mEnsemble[i], copy));
+			
+			return;
+		}
+		
 		for (int i = 0; i < mEnsemble.length; i++)
             mEnsemble[i].trainOnInstance(inst);
 	}
@@ -113,6 +168,254 @@ public class ANNCAD extends AbstractClassifier {
 
     @Override
     public Classifier[] getSubClassifiers() {
+    	waitForMembers();
+    	
         return this.mEnsemble.clone();
     }
+
+	@Override
+	public int measureByteSize() {
+		waitForMembers();
+		
+		return super.measureByteSize();
+	}
+
+	/**
+	 * Serializes the ensemble (also for copy) once the members are idle.
+	 * 
+	 * @param out Stream.
+	 * @throws IOException if the ensemble could not be written.
+	 */
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		waitForMembers();
+		out.defaultWriteObject();
+	}
+
+	/**
+	 * Waits until the members have trained all the instances received, so
+	 * that they can be read from this thread.
+	 */
+	private void waitForMembers() {
+		if (mQueues != null)
+			runOnMembers(null, null);
+	}
+
+	/**
+	 * Runs a task on each member after the ones that it has pending, and
+	 * waits for all of them. Each member writes its votes in its own
+	 * position, so no lock is needed to gather them.
+	 * 
+	 * @param inst Instance to classify, null for only waiting.
+	 * @param votes Array where the votes of each member are written (null 
+	 *              if it fails), or null for only waiting.
+	 */
+	private void runOnMembers(Instance inst, double[][] votes) {
+		CountDownLatch done = new CountDownLatch(mEnsemble.length);
+		boolean interrupted = false;
+		
+		for (int i = 0; i < mEnsemble.length; i++)
+			getQueues()[i].submit(new VotesTask(i, mEnsemble[i], inst, votes, done));
+		
+		while (true) {
+			try {
+				done.await();
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		
+		if (interrupted)
+			Thread.currentThread().interrupt();
+	}
+
+	/**
+	 * Returns the number of threads to run the members.
+	 * 
+	 * @return Number of threads.
+	 */
+	private int numThreads() {
+		if (mNumThreads.getValue() == 0)
+			return Runtime.getRuntime().availableProcessors();
+		
+		return mNumThreads.getValue();
+	}
+
+	/**
+	 * Returns the pool to run the members, created on demand.
+	 * 
+	 * @return Pool of threads.
+	 */
+	private ForkJoinPool getPool() {
+		if (mPool == null || mPool.getParallelism() != numThreads()) {
+			if (mPool != null)
+				mPool.shutdown();
+			
+			mPool = new ForkJoinPool(numThreads());
+		}
+		
+		return mPool;
+	}
+
+	/**
+	 * Returns the queues of the members, created on demand.
+	 * 
+	 * @return Queue of each member.
+	 */
+	private MemberQueue[] getQueues() {
+		if (mQueues == null) {
+			mQueues = new MemberQueue[mEnsemble.length];
+			
+			for (int i = 0; i < mQueues.length; i++)
+				mQueues[i] = new MemberQueue(i);
+		}
+		
+		return mQueues;
+	}
+
+	/**
+	 * Queue of the tasks of a member. The tasks are run in order of arrival
+	 * and by a thread at a time: the thread that finds the queue idle 
+	 * schedules it in the pool, and the queue runs until it is empty.
+	 */
+	private class MemberQueue implements Runnable {
+
+		/**
+		 * Position of the member in the ensemble.
+		 */
+		private final int mMember;
+
+		/**
+		 * Tasks pending.
+		 */
+		private final ConcurrentLinkedQueue<Runnable> mTasks = 
+		        new ConcurrentLinkedQueue<Runnable>();
+
+		/**
+		 * Number of tasks pending, including the one that is running.
+		 */
+		private final AtomicInteger mPending = new AtomicInteger();
+
+		/**
+		 * Whether the member has been replaced, so its training is useless.
+		 */
+		private volatile boolean mDiscarded;
+
+		public MemberQueue(int member) {
+			mMember = member;
+		}
+
+		/**
+		 * Adds a task to the queue, scheduling the queue if it was idle.
+		 * 
+		 * @param task Task.
+		 */
+		public void submit(Runnable task) {
+			mTasks.add(task);
+			
+			if (mPending.getAndIncrement() == 0)
+				getPool().execute(this);
+		}
+
+		/**
+		 * Skips the training tasks pending. The votes tasks still run, as
+		 * somebody waits for them.
+		 */
+		public void discard() {
+			mDiscarded = true;
+		}
+
+		@Override
+		public void run() {
+			do {
+				Runnable task = mTasks.poll();
+				
+				try {
+					if (!mDiscarded || task instanceof VotesTask)
+						task.run();
+				} catch (Throwable e) {
+					System.err.println("Error: member " + mMember + 
+					                   " of ANNCAD failed.");
+					e.printStackTrace();
+				}
+			} while (mPending.decrementAndGet() > 0);
+		}
+	}
+
+	/**
+	 * Task that trains a member with an instance.
+	 */
+	private class TrainTask implements Runnable {
+
+		/**
+		 * Member to train, fixed when the task is created.
+		 */
+		private final Classifier mMember;
+
+		/**
+		 * Instance.
+		 */
+		private final Instance mInst;
+
+		public TrainTask(Classifier member, Instance inst) {
+			mMember = member;
+			mInst = inst;
+		}
+
+		@Override
+		public void run() {
+			mMember.trainOnInstance(mInst);
+		}
+	}
+
+	/**
+	 * Task that computes the votes of a member for an instance, and then
+	 * counts itself as done.
+	 */
+	private class VotesTask implements Runnable {
+
+		/**
+		 * Position of the member in the ensemble.
+		 */
+		private final int mPosition;
+
+		/**
+		 * Member to classify with, fixed when the task is created.
+		 */
+		private final Classifier mMember;
+
+		/**
+		 * Instance, null for computing nothing.
+		 */
+		private final Instance mInst;
+
+		/**
+		 * Votes of each member.
+		 */
+		private final double[][] mVotes;
+
+		/**
+		 * Counter of the members done.
+		 */
+		private final CountDownLatch mDone;
+
+		public VotesTask(int position, Classifier member, Instance inst, 
+		                  double[][] votes, CountDownLatch done) {
+			mPosition = position;
+			mMember = member;
+			mInst = inst;
+			mVotes = votes;
+			mDone = done;
+		}
+
+		@Override
+		public void run() {
+			try {
+				if (mInst != null)
+					mVotes[mPosition] = mMember.getVotesForInstance(mInst);
+			} finally {
+				mDone.countDown();
+			}
+		}
+	}
 }
@@ -9,6 +9,7 @@ package utils.indexstructure;
 import java.io.Serializable;
 import java.util.AbstractCollection;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Comparator;
 import java.util.Iterator;
 import java.util.LinkedList;
@@ -1177,9 +1178,171 @@ public class MTree<E> extends AbstractCollection<E> implements Cloneable, Serial
             return it.next();
         return null;
     }
-    
+
+    /**
+     * Returns all the elements whose distance to <tt>instance</tt> is lower
+     * or equal than <tt>radius</tt>. A sphere is only visited if it
+     * intersects the query sphere (triangle inequality), which is first
+     * checked with the distance between the sphere and its parent.
+     *
+     * @param instance
+     *            the center of the query
+     * @param radius
+     *            the radius of the query
+     * @return the elements inside the query sphere
+     */
+    @SuppressWarnings("unchecked")
+    public List<E> rangeQuery(E instance, double radius) {
+        List<E> result = new ArrayList<E>();
+        if (root != null)
+            rangeQuery(root, instance, radius,
+                    distance.distance(root.center, instance), result);
+        return result;
+    }
+
+    @SuppressWarnings("unchecked")
+    protected void rangeQuery(Sphere sphere, Object instance, double radius,
+            double dist, List<E> result) {
+        if (sphere.level == 0) {
+            if (dist <= radius)
+                result.add((E) sphere.center);
+            return;
+        }
+        for (Sphere sp : sphere.childs) {
+            // The distance to the parent bounds the distance to the child
+            // without computing it.
+            if (sp.distanceToParent >= 0 && Math.abs(dist
+                    - sp.distanceToParent) - sp.radius > radius)
+                continue;
+            double d = distance.distance(sp.center, instance);
+            if (d - sp.radius <= radius)
+                rangeQuery(sp, instance, radius, d, result);
+        }
+    }
+
    
 
+    /**
+     * Returns the distance to the nearest element of <tt>instance</tt>. The
+     * spheres are visited depth-first, the nearest ones first, and only if
+     * they could contain an element nearer than the nearest found so far.
+     *
+     * @param instance
+     *            the center of the query
+     * @return the distance to the nearest element, infinity if the tree is
+     *         empty
+     */
+    @SuppressWarnings("unchecked")
+    public double nearestDistance(E instance) {
+        if (root == null)
+            return Double.POSITIVE_INFINITY;
+        return nearestDistance(root, instance,
+                distance.distance(root.center, instance),
+                Double.POSITIVE_INFINITY);
+    }
+
+    @SuppressWarnings("unchecked")
+    protected double nearestDistance(Sphere sphere, Object instance,
+            double dist, double best) {
+        if (sphere.level == 0)
+            return Math.min(best, dist);
+        int n = sphere.childs.size();
+        double[] d = new double[n];
+        double[] lower = new double[n];
+        for (int i = 0; i < n; i++) {
+            Sphere sp = sphere.childs.get(i);
+            lower[i] = Double.POSITIVE_INFINITY;
+            if (sp.distanceToParent >= 0 && Math.abs(dist
+                    - sp.distanceToParent) - sp.radius >= best)
+                continue;
+            d[i] = distance.distance(sp.center, instance);
+            lower[i] = d[i] - sp.radius;
+            if (sp.level == 0)
+                best = Math.min(best, d[i]);
+        }
+        if (sphere.level == 1)
+            return best;
+        int[] order = Utils.sort(lower);
+        for (int i = 0; i < n && lower[order[i]] < best; i++)
+            best = nearestDistance(sphere.childs.get(order[i]), instance,
+                    d[order[i]], best);
+        return best;
+    }
+
+    /**
+     * Returns the distance to the k-th nearest element of <tt>instance</tt>.
+     * As in nearestDistance, the spheres are visited depth-first, the nearest
+     * ones first, and only if they could contain an element nearer than the
+     * k-th nearest found so far.
+     *
+     * @param instance
+     *            the center of the query
+     * @param k
+     *            the number of nearest elements
+     * @return the distance to the k-th nearest element, infinity if the tree
+     *         has less than k elements
+     */
+    @SuppressWarnings("unchecked")
+    public double kNearestDistance(E instance, int k) {
+        if (root == null || k <= 0)
+            return Double.POSITIVE_INFINITY;
+        double[] best = new double[k];
+        Arrays.fill(best, Double.POSITIVE_INFINITY);
+        kNearestDistance(root, instance,
+                distance.distance(root.center, instance), best);
+        return best[k - 1];
+    }
+
+    /**
+     * Inserts <tt>dist</tt> in the sorted array of the k best distances, if
+     * it is lower than the k-th one.
+     */
+    protected static void insertBest(double[] best, double dist) {
+        int i = best.length - 1;
+        if (dist >= best[i])
+            return;
+        for (; i > 0 && best[i - 1] > dist; i--)
+            best[i] = best[i - 1];
+        best[i] = dist;
+    }
+
+    @SuppressWarnings("unchecked")
+    protected void kNearestDistance(Sphere sphere, Object instance,
+            double dist, double[] best) {
+        if (sphere.level == 0) {
+            insertBest(best, dist);
+            return;
+        }
+        int n = sphere.childs.size();
+        int k = best.length;
+        double[] d = new double[n];
+        double[] lower = new double[n];
+        for (int i = 0; i < n; i++) {
+            Sphere sp = sphere.childs.get(i);
+            lower[i] = Double.POSITIVE_INFINITY;
+            if (sp.distanceToParent >= 0 && Math.abs(dist
+                    - sp.distanceToParent) - sp.radius >= best[k - 1])
+                continue;
+            d[i] = distance.distance(sp.center, instance);
+            lower[i] = d[i] - sp.radius;
+            if (sp.level == 0)
+                insertBest(best, d[i]);
+        }
+        if (sphere.level == 1)
+            return;
+        // Insertion sort of the children by lower bound: they are few.
+        int[] order = new int[n];
+        for (int i = 0; i < n; i++) {
+            int j = i;
+            for (; j > 0 && lower[order[j - 1]] > lower[i]; j--)
+                order[j] = order[j - 1];
+            order[j] = i;
+        }
+        for (int i = 0; i < n && lower[order[i]] < best[k - 1]; i++)
+            kNearestDistance(sphere.childs.get(order[i]), instance,
+                    d[order[i]], best);
+    }
+
     public Iterator<E> iterator() {
         return new AllIterator();
             